@@ -0,0 +1,226 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+import logging.Logger;
+
+/**
+ * Microbenchmarks for the code every connection runs per message: disabled log calls,
+ * the wire codec, the handshake, the shared FileManager and the InterestManager lookups and updates
+ * every have and completed piece make. Piece counts cover the sample config (a 2 MB file in 16 KB pieces)
+ * and a large torrent (4096 pieces); peer counts cover a small and a large swarm.
+ * Runs offline on the MicroBench harness, so results can be compared from commit
+ * to commit.
+ *
+ * Build and run from the repository root:
+ *   javac -d out -sourcepath src bench/MicroBench.java bench/HotPathBenchmark.java
+ *   java -cp out HotPathBenchmark [name regex]
+ */
+public class HotPathBenchmark {
+    private static final int PIECE_SIZE = 16 * 1024;
+    // Pieces in the sample thefile (2167705 bytes) and in a 1 GB file of 256 KB pieces
+    private static final int[] PIECE_COUNTS = { 133, 4096 };
+    private static final int[] PEER_COUNTS = { 8, 64 };
+    private static final String[] STORAGE_MODES = { "heap", "mmap", "file" };
+    // Pieces per FileManager when benchmarking stores; a fresh one is built once every piece is in
+    private static final int STORE_PIECES = 1024;
+
+    public static void main(String[] args) throws Exception {
+        checkLogLevels();
+        Logger.setLogLevel(Logger.LogLevel.ERROR);
+        MicroBench bench = new MicroBench(args.length > 0 ? args[0] : "");
+        bench.printHeader();
+        logging(bench);
+        codec(bench);
+        handshakes(bench);
+        fileManager(bench);
+        interest(bench);
+    }
+
+    // The numbers below assume disabled levels are skipped; fail before measuring if they are not
+    private static void checkLogLevels() {
+        Logger.setLogLevel(Logger.LogLevel.INFO);
+        if (Logger.isEnabled(Logger.LogLevel.DEBUG) || !Logger.isEnabled(Logger.LogLevel.INFO)) {
+            throw new IllegalStateException("At INFO, DEBUG must be off and INFO on");
+        }
+        Logger.setLogLevel(Logger.LogLevel.WARN);
+        if (Logger.isEnabled(Logger.LogLevel.INFO) || !Logger.isEnabled(Logger.LogLevel.ERROR)) {
+            throw new IllegalStateException("At WARN, INFO must be off and ERROR on");
+        }
+    }
+
+    private static void logging(MicroBench bench) throws Exception {
+        // A disabled hot-path debug call, as PeerHandler makes per message at the default level
+        Logger.setLogLevel(Logger.LogLevel.INFO);
+        int[] next = { 0 };
+        bench.run("Logger.debug disabled", () -> {
+            Logger.debug("Piece %d from peer %d", next[0]++, 1001);
+            return next;
+        });
+        Logger.setLogLevel(Logger.LogLevel.ERROR);
+    }
+
+    private static void codec(MicroBench bench) throws Exception {
+        message interested = new message('2');
+        bench.run("message.getMessage", interested::getMessage);
+        ByteBuffer out = ByteBuffer.allocate(MessageCodec.INDEXED_FRAME_LENGTH);
+        bench.run("MessageCodec.encodeControl", () -> {
+            out.clear();
+            MessageCodec.encodeControl(out, MessageCodec.INTERESTED);
+            return out;
+        });
+        bench.run("MessageCodec.encodeIndexed", () -> {
+            out.clear();
+            MessageCodec.encodeIndexed(out, MessageCodec.REQUEST, 42);
+            return out;
+        });
+        // A have frame body sitting at an offset in a larger receive buffer
+        ByteBuffer received = ByteBuffer.allocate(64);
+        received.position(20).put(MessageCodec.HAVE).putInt(42).flip().position(20);
+        bench.run("MessageCodec.pieceIndex", () -> MessageCodec.pieceIndex(received));
+        for (int numPieces : PIECE_COUNTS) {
+            BitSet bitfield = randomBitfield(numPieces, new Random(numPieces));
+            byte[] frame = message.createBitfieldMessage(bitfield);
+            // What the transport hands PeerHandler: the frame without its length prefix
+            ByteBuffer body = ByteBuffer.wrap(frame, 4, frame.length - 4).slice();
+            bench.run("message.createBitfieldMessage pieces=" + numPieces,
+                    () -> message.createBitfieldMessage(bitfield));
+            bench.run("message.parseBitfieldMessage(byte[]) pieces=" + numPieces,
+                    () -> message.parseBitfieldMessage(frame));
+            bench.run("message.parseBitfieldMessage(ByteBuffer) pieces=" + numPieces,
+                    () -> message.parseBitfieldMessage(body));
+        }
+    }
+
+    private static void handshakes(MicroBench bench) throws Exception {
+        handshake local = new handshake(1001);
+        byte[] bytes = local.createHandshake();
+        bench.run("handshake.createHandshake", local::createHandshake);
+        bench.run("handshake.readHandshake", () -> handshake.readHandshake(bytes) == 1001);
+    }
+
+    private static void fileManager(MicroBench bench) throws Exception {
+        int numPieces = PIECE_COUNTS[0];
+        File seed = File.createTempFile("hotpath", ".bin");
+        seed.deleteOnExit();
+        byte[] data = new byte[numPieces * PIECE_SIZE];
+        new Random(42).nextBytes(data);
+        try (RandomAccessFile raf = new RandomAccessFile(seed, "rw")) {
+            raf.write(data);
+        }
+        byte[] piece = new byte[PIECE_SIZE];
+        new Random(7).nextBytes(piece);
+
+        for (String mode : STORAGE_MODES) {
+            FileManager seeder = new FileManager(data.length, PIECE_SIZE, seed.getPath(), true, 1, mode);
+            int[] next = { 0 };
+            bench.run("FileManager.getPiece mode=" + mode,
+                    () -> seeder.getPiece(next[0]++ % numPieces));
+
+            File target = File.createTempFile("hotpath-store", ".bin");
+            target.deleteOnExit();
+            StoreState state = new StoreState(target.getPath(), mode);
+            bench.run("FileManager.storePiece mode=" + mode, () -> state.store(piece));
+            target.delete();
+        }
+
+        for (int pieces : PIECE_COUNTS) {
+            // Tiny pieces: getBitfield only depends on the piece count
+            FileManager half = new FileManager(pieces * 16, 16, seed.getPath() + ".bitfield", false, 2, "heap");
+            BitSet have = randomBitfield(pieces, new Random(pieces));
+            for (int i = have.nextSetBit(0); i >= 0; i = have.nextSetBit(i + 1)) {
+                half.storePiece(i, new byte[16]);
+            }
+            bench.run("FileManager.getBitfield pieces=" + pieces, half::getBitfield);
+            bench.run("FileManager.getBitfieldMessage pieces=" + pieces, half::getBitfieldMessage);
+
+            ConcurrentBitfield ours = new ConcurrentBitfield(pieces);
+            ours.or(have);
+            BitSet theirs = randomBitfield(pieces, new Random(pieces + 1));
+            int[] next = { 0 };
+            bench.run("ConcurrentBitfield.get pieces=" + pieces, () -> ours.get(next[0]++ % pieces));
+            // Every bit is already set after the first pass, as for repeated haves
+            bench.run("ConcurrentBitfield.set pieces=" + pieces, () -> ours.set(next[0]++ % pieces));
+            bench.run("ConcurrentBitfield.andNotCardinality pieces=" + pieces,
+                    () -> ours.andNotCardinality(theirs));
+            bench.run("ConcurrentBitfield.andNot pieces=" + pieces, () -> ours.andNot(theirs));
+        }
+    }
+
+    private static void interest(MicroBench bench) throws Exception {
+        for (int peers : PEER_COUNTS) {
+            for (int numPieces : PIECE_COUNTS) {
+                Random random = new Random(peers * 31L + numPieces);
+                InterestManager interestManager = new InterestManager(numPieces, randomBitfield(numPieces, random));
+                for (int peer = 0; peer < peers; peer++) {
+                    interestManager.peerBitfield(peer, randomBitfield(numPieces, random));
+                }
+                int[] next = { 0 };
+                String params = " peers=" + peers + " pieces=" + numPieces;
+                bench.run("InterestManager.isInterestedIn" + params,
+                        () -> interestManager.isInterestedIn(next[0]++ % peers));
+                // Replaces a neighbor's pieces, as a bitfield message does
+                BitSet bitfield = randomBitfield(numPieces, random);
+                bench.run("InterestManager.peerBitfield" + params,
+                        () -> interestManager.peerBitfield(next[0]++ % peers, bitfield));
+                // Repeats a have the index already holds, as most haves in a swarm do
+                bench.run("InterestManager.peerHas" + params,
+                        () -> interestManager.peerHas(next[0] % peers, next[0]++ % numPieces));
+                // Completes every piece of a fresh download; each call also rebuilds the index,
+                // which is included in the per-piece figure
+                BitSet none = new BitSet(numPieces);
+                BitSet[] bitfields = new BitSet[peers];
+                for (int peer = 0; peer < peers; peer++) {
+                    bitfields[peer] = randomBitfield(numPieces, random);
+                }
+                bench.run("InterestManager.pieceCompleted" + params, numPieces, () -> {
+                    InterestManager download = new InterestManager(numPieces, none);
+                    for (int peer = 0; peer < peers; peer++) {
+                        download.peerBitfield(peer, bitfields[peer]);
+                    }
+                    int lost = 0;
+                    for (int i = 0; i < numPieces; i++) {
+                        lost += download.pieceCompleted(i).length;
+                    }
+                    return lost;
+                });
+            }
+        }
+    }
+
+    private static BitSet randomBitfield(int numPieces, Random random) {
+        BitSet bits = new BitSet(numPieces);
+        for (int i = 0; i < numPieces; i++) {
+            if (random.nextBoolean()) {
+                bits.set(i);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Stores pieces into a leecher's FileManager in order, replacing it with an empty one once
+     * it is full. The cost of building each FileManager and completing its file is spread over
+     * its STORE_PIECES stores, as it is over a real download.
+     */
+    private static final class StoreState {
+        private final String fileName;
+        private final String mode;
+        private FileManager fileManager;
+        private int next = STORE_PIECES;
+
+        StoreState(String fileName, String mode) {
+            this.fileName = fileName;
+            this.mode = mode;
+        }
+
+        Object store(byte[] piece) throws Exception {
+            if (next == STORE_PIECES) {
+                fileManager = new FileManager(STORE_PIECES * PIECE_SIZE, PIECE_SIZE, fileName, false, 3, mode);
+                next = 0;
+            }
+            return fileManager.storePiece(next++, piece);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * A small JMH-style harness for the microbenchmarks in bench/, for trees that have no
+ * build file to pull JMH in with. Each benchmark is calibrated so one iteration takes
+ * about ITERATION_NANOS, then run for WARMUP_ITERATIONS untimed and
+ * MEASURED_ITERATIONS timed iterations on the calling thread. It reports the mean
+ * time per operation, its standard deviation across iterations, throughput and the
+ * bytes allocated per operation.
+ *
+ * Every result an operation returns is written to a volatile field so the JIT cannot
+ * discard the work; that store costs about a nanosecond and is included in the numbers.
+ */
+final class MicroBench {
+    private static final long ITERATION_NANOS = 100_000_000L;
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static volatile Object sink;
+
+    private final Pattern filter;
+
+    /**
+     * One call of the benchmarked code. A call may perform several operations, e.g. when it
+     * has to rebuild state that the operation consumes; see run(String, int, Op).
+     */
+    interface Op {
+        Object run() throws Exception;
+    }
+
+    /**
+     * @param filter a regular expression; only benchmarks whose name contains a match run
+     */
+    MicroBench(String filter) {
+        this.filter = Pattern.compile(filter);
+    }
+
+    void printHeader() {
+        System.out.printf("%-60s %12s %10s %14s %10s%n", "benchmark", "ns/op", "+-", "ops/s", "B/op");
+    }
+
+    void run(String name, Op op) throws Exception {
+        run(name, 1, op);
+    }
+
+    /**
+     * @param opsPerCall how many operations one call of op performs; results are reported per operation
+     */
+    void run(String name, int opsPerCall, Op op) throws Exception {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        long calls = calibrate(op);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iterate(op, calls);
+        }
+        double[] nanosPerOp = new double[MEASURED_ITERATIONS];
+        long allocated = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+            long elapsed = iterate(op, calls);
+            allocated += THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            nanosPerOp[i] = (double) elapsed / (calls * opsPerCall);
+        }
+        double mean = Arrays.stream(nanosPerOp).average().orElse(0);
+        double variance = Arrays.stream(nanosPerOp).map(x -> (x - mean) * (x - mean)).sum()
+                / Math.max(1, MEASURED_ITERATIONS - 1);
+        double bytesPerOp = (double) allocated / ((long) MEASURED_ITERATIONS * calls * opsPerCall);
+        System.out.printf("%-60s %12.1f %10.1f %14.0f %10.0f%n", name, mean, Math.sqrt(variance),
+                mean > 0 ? 1e9 / mean : 0, bytesPerOp);
+    }
+
+    /**
+     * Doubles the call count until one iteration takes long enough to time reliably.
+     */
+    private static long calibrate(Op op) throws Exception {
+        long calls = 1;
+        while (true) {
+            long elapsed = iterate(op, calls);
+            if (elapsed >= ITERATION_NANOS / 4 || calls >= Long.MAX_VALUE / 4) {
+                return Math.max(1, calls * ITERATION_NANOS / Math.max(1, elapsed));
+            }
+            calls *= 2;
+        }
+    }
+
+    private static long iterate(Op op, long calls) throws Exception {
+        long start = System.nanoTime();
+        for (long i = 0; i < calls; i++) {
+            sink = op.run();
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import logging.Logger;
+
+/**
+ * Measures how fast a seeder can serve pieces over the NIO transport with each upload path:
+ * heap or mapped piece views sent behind their header with a gathering write, and mapped
+ * or plain file-backed pieces sent with FileChannel.transferTo. A set of neighbors keeps a fixed
+ * window of requests in flight against a single seeding peer; the report shows goodput
+ * together with the CPU time and heap allocation of the reactor threads doing the uploads.
+ *
+ * Build and run from the repository root:
+ *   javac -d out -sourcepath src bench/PieceUploadBenchmark.java
+ *   java -cp out PieceUploadBenchmark [neighbors] [requestsPerNeighbor]
+ */
+public class PieceUploadBenchmark {
+    private static final int SERVER_ID = 1;
+    private static final int PIECE_SIZE = 256 * 1024;
+    private static final int NUM_PIECES = 128;
+    private static final int WINDOW = 8;
+
+    public static void main(String[] args) throws Exception {
+        int neighbors = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int requestsPerNeighbor = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Logger.setLogLevel(Logger.LogLevel.ERROR);
+
+        File file = File.createTempFile("upload", ".bin");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] data = new byte[PIECE_SIZE * NUM_PIECES];
+            new Random(42).nextBytes(data);
+            raf.write(data);
+        }
+
+        System.out.printf("%-16s %10s %14s %16s%n", "upload path", "MB/s", "CPU ms/GB", "alloc MB/GB");
+        // First pass warms up the JIT; only the second is reported
+        for (int pass = 0; pass < 2; pass++) {
+            run("heap gather", "heap", false, neighbors, requestsPerNeighbor, file, pass == 1);
+            run("mmap gather", "mmap", false, neighbors, requestsPerNeighbor, file, pass == 1);
+            run("mmap transferTo", "mmap", true, neighbors, requestsPerNeighbor, file, pass == 1);
+            run("file transferTo", "file", true, neighbors, requestsPerNeighbor, file, pass == 1);
+        }
+    }
+
+    private static void run(String label, String storageMode, boolean zeroCopy, int neighbors,
+            int requestsPerNeighbor, File file, boolean report) throws Exception {
+        FileManager fileManager = new FileManager(PIECE_SIZE * NUM_PIECES, PIECE_SIZE, file.getAbsolutePath(), true,
+                SERVER_ID, storageMode);
+        fileManager.setZeroCopyUpload(zeroCopy);
+        PeerRegistry<PeerHandler> peers = new PeerRegistry<>(neighbors);
+        InterestManager interestManager = new InterestManager(NUM_PIECES, fileManager.getBitfield());
+        PieceScheduler scheduler = new PieceScheduler(
+                new AvailabilityIndex(NUM_PIECES, fileManager.getBitfield()), NUM_PIECES);
+        MetricsRegistry metrics = new MetricsRegistry(SERVER_ID);
+
+        Set<Long> before = reactorThreadIds();
+        NioTransport transport = new NioTransport(SERVER_ID, 2, PIECE_SIZE + 5,
+                (remoteId, connection) -> unchoked(new PeerHandler(connection, fileManager, interestManager,
+                        peers, scheduler, new RequestPipeline(1, PIECE_SIZE), metrics, SERVER_ID, remoteId)));
+        Set<Long> reactors = reactorThreadIds();
+        reactors.removeAll(before);
+        int port = freePort();
+        transport.listen(port);
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long cpuBefore = 0;
+        long allocBefore = 0;
+        for (long id : reactors) {
+            cpuBefore += threads.getThreadCpuTime(id);
+            allocBefore += threads.getThreadAllocatedBytes(id);
+        }
+
+        long start = System.nanoTime();
+        ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+        Future<?>[] results = new Future<?>[neighbors];
+        for (int i = 0; i < neighbors; i++) {
+            int id = clientId(i);
+            results[i] = clients.submit(() -> {
+                download(port, id, requestsPerNeighbor);
+                return null;
+            });
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long cpu = -cpuBefore;
+        long alloc = -allocBefore;
+        for (long id : reactors) {
+            cpu += threads.getThreadCpuTime(id);
+            alloc += threads.getThreadAllocatedBytes(id);
+        }
+        clients.shutdown();
+        transport.shutdown();
+
+        if (report) {
+            double gigabytes = (double) neighbors * requestsPerNeighbor * PIECE_SIZE / (1L << 30);
+            System.out.printf("%-16s %10.0f %14.0f %16.1f%n", label,
+                    gigabytes * 1024 / (elapsed / 1e9), cpu / 1e6 / gigabytes, alloc / (double) (1 << 20) / gigabytes);
+        }
+    }
+
+    /**
+     * One simulated neighbor: keeps WINDOW requests outstanding until it has received
+     * requestsPerNeighbor pieces.
+     */
+    private static void download(int port, int id, int requests) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(new handshake(id).createHandshake());
+            in.readFully(new byte[32]);
+
+            Random random = new Random(id);
+            ByteBuffer request = ByteBuffer.allocate(9);
+            byte[] frame = new byte[PIECE_SIZE + 5];
+            int sent = 0;
+            int received = 0;
+            while (sent < Math.min(WINDOW, requests)) {
+                sendRequest(out, request, random.nextInt(NUM_PIECES));
+                sent++;
+            }
+            while (received < requests) {
+                int length = in.readInt();
+                in.readFully(frame, 0, length);
+                if (frame[0] != '7') {
+                    continue;
+                }
+                received++;
+                if (sent < requests) {
+                    sendRequest(out, request, random.nextInt(NUM_PIECES));
+                    sent++;
+                }
+            }
+        }
+    }
+
+    private static void sendRequest(DataOutputStream out, ByteBuffer request, int pieceIndex) throws IOException {
+        request.clear();
+        request.putInt(5).put((byte) '6').putInt(pieceIndex);
+        out.write(request.array());
+    }
+
+    private static Set<Long> reactorThreadIds() {
+        Set<Long> ids = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("nio-reactor-")) {
+                ids.add(thread.threadId());
+            }
+        }
+        return ids;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Lets the neighbor's requests through without waiting for a choke round.
+     */
+    private static PeerHandler unchoked(PeerHandler handler) {
+        handler.setChokingPeer(false);
+        return handler;
+    }
+
+    private static int clientId(int i) {
+        return 10000 + i;
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+import logging.Logger;
+
+/**
+ * Runs a whole swarm of peerProcess instances inside one JVM on loopback and reports how
+ * it went: time-to-complete per peer, aggregate goodput, the share of duplicate pieces,
+ * and the CPU time and heap allocation the swarm needed per MB delivered.
+ *
+ * Every peer gets its own working directory under a temporary directory, with its own
+ * Common.cfg and PeerInfo.cfg, laid out like project_config_file_small: peers 1001 and
+ * 1006 start with the file, everyone else starts empty. The swarm runs the full
+ * protocol, from handshakes through choking to the last have message. Peers connect in
+ * a full mesh as the project spec requires, so N peers use about N*N file descriptors.
+ *
+ * Build and run from the repository root:
+ *   javac -d out -sourcepath src bench/SwarmBenchmark.java
+ *   java -cp out SwarmBenchmark [peers] [timeoutSeconds] [Key=Value ...]
+ * Key=Value pairs override the generated Common.cfg, e.g. TransportMode=virtual.
+ */
+public class SwarmBenchmark {
+    private static final int FIRST_PEER_ID = 1001;
+    private static final int[] SEEDER_IDS = { 1001, 1006 };
+    // List each peer's completion time for swarms up to this size
+    private static final int MAX_LISTED_PEERS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int timeoutSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+        Map<String, String> config = defaultConfig();
+        for (int i = 2; i < args.length; i++) {
+            String[] pair = args[i].split("=", 2);
+            config.put(pair[0], pair[1]);
+        }
+        Logger.setLogLevel(Logger.LogLevel.ERROR);
+
+        int fileSize = Integer.parseInt(config.get("FileSize"));
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        Path root = Files.createTempDirectory("swarm");
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            ids.add(FIRST_PEER_ID + i);
+        }
+        writePeerDirectories(root, ids, config, data);
+
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long cpuBefore = os.getProcessCpuTime();
+        long allocBefore = threads.getTotalThreadAllocatedBytes();
+
+        // Seeders come first in ID order and write the manifest the leechers then pick up
+        Map<Integer, peerProcess> processes = new LinkedHashMap<>();
+        Path manifest = root.resolve(Integer.toString(SEEDER_IDS[0]))
+                .resolve(config.get("FileName") + PieceManifest.SUFFIX);
+        for (int id : ids) {
+            Path dir = root.resolve(Integer.toString(id));
+            if (!isSeeder(id) && Files.exists(manifest)) {
+                Files.copy(manifest, dir.resolve(manifest.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+            processes.put(id, new peerProcess(id, dir));
+        }
+
+        long start = System.nanoTime();
+        Map<Integer, Long> completedAt = new LinkedHashMap<>();
+        List<CompletableFuture<Void>> completions = new ArrayList<>();
+        for (Map.Entry<Integer, peerProcess> entry : processes.entrySet()) {
+            entry.getValue().start();
+            completions.add(entry.getValue().getCompletion().thenRun(() -> {
+                synchronized (completedAt) {
+                    completedAt.put(entry.getKey(), System.nanoTime() - start);
+                }
+            }));
+        }
+        boolean finished = true;
+        try {
+            CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0]))
+                    .get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            finished = false;
+        }
+        long elapsed = System.nanoTime() - start;
+        long cpu = os.getProcessCpuTime() - cpuBefore;
+        long allocated = threads.getTotalThreadAllocatedBytes() - allocBefore;
+
+        long duplicates = 0;
+        long stored = 0;
+        long downloaded = 0;
+        for (peerProcess process : processes.values()) {
+            duplicates += process.getMetrics().getDuplicatePieces();
+            stored += process.getMetrics().getPiecesStored();
+            downloaded += process.getMetrics().getBytesDownloaded();
+            process.shutdown();
+        }
+
+        int corrupt = 0;
+        for (int id : completedAt.keySet()) {
+            Path file = root.resolve(Integer.toString(id)).resolve(config.get("FileName"));
+            if (!Arrays.equals(data, Files.readAllBytes(file))) {
+                corrupt++;
+            }
+        }
+
+        long leechers = ids.stream().filter(id -> !isSeeder(id)).count();
+        double deliveredMb = leechers * (double) fileSize / (1024 * 1024);
+        double seconds = elapsed / 1e9;
+        System.out.printf("peers %d (%d seeders), file %d bytes in %s byte pieces, transport %s, storage %s%n",
+                peers, peers - leechers, fileSize, config.get("PieceSize"), config.get("TransportMode"),
+                config.get("StorageMode"));
+        if (peers <= MAX_LISTED_PEERS) {
+            completedAt.entrySet().stream()
+                    .filter(entry -> !isSeeder(entry.getKey()))
+                    .sorted(Map.Entry.comparingByValue())
+                    .forEach(entry -> System.out.printf("  peer %d complete after %8.1f ms%n", entry.getKey(),
+                            entry.getValue() / 1e6));
+        }
+        long[] times = completedAt.entrySet().stream()
+                .filter(entry -> !isSeeder(entry.getKey()))
+                .mapToLong(Map.Entry::getValue)
+                .sorted()
+                .toArray();
+        if (times.length > 0) {
+            System.out.printf("time to complete ms: min %.1f  p50 %.1f  p90 %.1f  max %.1f%n",
+                    times[0] / 1e6, percentile(times, 0.5) / 1e6, percentile(times, 0.9) / 1e6,
+                    times[times.length - 1] / 1e6);
+        }
+        System.out.printf("complete %d/%d leechers in %.2f s%s%n", times.length, leechers, seconds,
+                finished ? "" : " (timed out)");
+        System.out.printf("aggregate goodput %.1f MB/s%n", deliveredMb / seconds);
+        System.out.printf("duplicate pieces %.2f%% (%d of %d received), bytes received / needed %.3f%n",
+                100.0 * duplicates / Math.max(1, duplicates + stored), duplicates, duplicates + stored,
+                downloaded / Math.max(1.0, leechers * (double) fileSize));
+        System.out.printf("CPU %.0f ms (%.1f ms/MB), allocated %.0f MB (%.2f MB/MB)%n", cpu / 1e6,
+                cpu / 1e6 / deliveredMb, allocated / 1048576.0, allocated / 1048576.0 / deliveredMb);
+        System.out.printf("verified %d files, %d corrupt%n", completedAt.size(), corrupt);
+
+        if (finished && corrupt == 0) {
+            deleteRecursively(root);
+        } else {
+            System.out.println("peer directories kept in " + root);
+        }
+        System.exit(finished && corrupt == 0 ? 0 : 1);
+    }
+
+    private static Map<String, String> defaultConfig() {
+        Map<String, String> config = new LinkedHashMap<>();
+        config.put("NumberOfPreferredNeighbors", "3");
+        // Shorter than the sample config's 5 and 10 seconds so a run takes seconds, not minutes
+        config.put("UnchokingInterval", "1");
+        config.put("OptimisticUnchokingInterval", "2");
+        config.put("FileName", "thefile");
+        config.put("FileSize", "2167705");
+        config.put("PieceSize", "16384");
+        config.put("TransportMode", "nio");
+        config.put("StorageMode", "file");
+        config.put("ReactorThreads", "1");
+        config.put("MetricsInterval", "0");
+        return config;
+    }
+
+    private static boolean isSeeder(int id) {
+        return Arrays.stream(SEEDER_IDS).anyMatch(seeder -> seeder == id);
+    }
+
+    private static void writePeerDirectories(Path root, List<Integer> ids, Map<String, String> config, byte[] data)
+            throws IOException {
+        StringBuilder common = new StringBuilder();
+        config.forEach((key, value) -> common.append(key).append(' ').append(value).append('\n'));
+        StringBuilder peerInfo = new StringBuilder();
+        int[] ports = freePorts(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            peerInfo.append(ids.get(i)).append(" 127.0.0.1 ").append(ports[i]).append(' ')
+                    .append(isSeeder(ids.get(i)) ? 1 : 0).append('\n');
+        }
+        for (int id : ids) {
+            Path dir = Files.createDirectories(root.resolve(Integer.toString(id)));
+            Files.writeString(dir.resolve("Common.cfg"), common);
+            Files.writeString(dir.resolve("PeerInfo.cfg"), peerInfo);
+            if (isSeeder(id)) {
+                Files.write(dir.resolve(config.get("FileName")), data);
+            }
+        }
+    }
+
+    private static int[] freePorts(int count) throws IOException {
+        ServerSocket[] sockets = new ServerSocket[count];
+        int[] ports = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets[i] = new ServerSocket(0);
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        return ports;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
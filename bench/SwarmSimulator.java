@@ -0,0 +1,643 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import errorhandling.P2PFileSharingException;
+import logging.Logger;
+
+/**
+ * Discrete-event simulation of a swarm on a virtual clock, for studying the choking and
+ * piece-selection algorithms at sizes and time spans SwarmBenchmark cannot reach: thousands
+ * of peers and hours of swarm time run in seconds, and the same seed always gives the
+ * same run.
+ *
+ * Each simulated peer runs the real chokeHandler (through a TaskScheduler on the virtual
+ * clock), the real PieceScheduler, AvailabilityIndex and RequestPipeline, and keeps a
+ * MetricsRegistry the choker reads its rates from. Only the wire is modelled: peers sit
+ * on a random graph of the given degree and messages arrive after the link's latency.
+ * Each peer serves requests one piece at a time in arrival order, at the lower of its
+ * upload rate and the downloader's download rate, and drops requests from neighbors it
+ * has choked by the time they come up, as PeerHandler does. In endgame, a piece that arrives
+ * cancels the other requests for it, and a cancel removes a request still waiting in the
+ * uploader's queue, as NioPeerConnection does. Peers fall into bandwidth
+ * classes; seeders are in the fastest, and leechers stay on as seeders once complete.
+ *
+ * The report covers the completion-time distribution overall and per class, fairness
+ * (Jain's index over share ratios and download rates), what endgame cost in duplicate
+ * bytes against the latency it saved, a timeline of choke churn to show how quickly the
+ * preferred sets settle, and the simulator's own event rate. Running the same seed with
+ * Endgame=false shows its effect on the completion tail.
+ *
+ * Build and run from the repository root:
+ *   javac -d out -sourcepath src bench/SwarmSimulator.java
+ *   java -cp out SwarmSimulator [Key=Value ...]
+ * e.g. java -cp out SwarmSimulator Peers=5000 Degree=50 Seed=7
+ */
+public class SwarmSimulator {
+    private static final long KB = 1024;
+
+    // name, upload and download bytes/s, share of leechers
+    private static final String[] CLASS_NAMES = { "slow", "medium", "fast" };
+    private static final long[] CLASS_UPLOAD = { 128 * KB, 512 * KB, 2048 * KB };
+    private static final long[] CLASS_DOWNLOAD = { 1024 * KB, 4096 * KB, 16384 * KB };
+    private static final double[] CLASS_SHARE = { 0.5, 0.35, 0.15 };
+    // Print at most this many rows of the churn timeline
+    private static final int MAX_TIMELINE_ROWS = 24;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now;
+    private long sequence;
+    private long processed;
+
+    private final int pieceCount;
+    private final int pieceSize;
+    private final int pipelineDepth;
+    private final List<SimPeer> peers = new ArrayList<>();
+    private int remaining;
+    private long duplicates;
+    private long rejected;
+    private boolean endgame;
+    private long cancels;
+    // time, choke + unchoke transitions so far, bytes downloaded so far, peers complete
+    private final List<long[]> timeline = new ArrayList<>();
+
+    public static void main(String[] args) throws P2PFileSharingException {
+        Map<String, String> config = defaultConfig();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2 || !config.containsKey(pair[0])) {
+                System.err.println("Unknown argument " + arg + ", expected one of " + config.keySet());
+                System.exit(2);
+            }
+            config.put(pair[0], pair[1]);
+        }
+        Logger.setLogLevel(Logger.LogLevel.ERROR);
+
+        String depth = config.get("PipelineDepth");
+        SwarmSimulator simulator = new SwarmSimulator(intValue(config, "Pieces"), intValue(config, "PieceSize"),
+                depth.equalsIgnoreCase("auto") ? 0 : Integer.parseInt(depth));
+        simulator.build(config);
+        long start = System.nanoTime();
+        simulator.run(TimeUnit.SECONDS.toNanos(intValue(config, "SimTime")),
+                TimeUnit.SECONDS.toNanos(intValue(config, "SampleInterval")));
+        long wall = System.nanoTime() - start;
+        simulator.report(config, wall);
+    }
+
+    private static Map<String, String> defaultConfig() {
+        Map<String, String> config = new LinkedHashMap<>();
+        config.put("Peers", "1000");
+        config.put("Seeders", "1");
+        config.put("Pieces", "256");
+        config.put("PieceSize", "262144");
+        config.put("Degree", "40");
+        config.put("NumberOfPreferredNeighbors", "4");
+        config.put("UnchokingInterval", "10");
+        config.put("OptimisticUnchokingInterval", "30");
+        config.put("PipelineDepth", "auto");
+        config.put("Endgame", "true");
+        // Mean one-way latency; each link draws its own between half and one and a half times this
+        config.put("LatencyMs", "40");
+        // Simulated seconds before giving up on stragglers
+        config.put("SimTime", "14400");
+        config.put("SampleInterval", "30");
+        config.put("Seed", "1");
+        return config;
+    }
+
+    private static int intValue(Map<String, String> config, String key) {
+        return Integer.parseInt(config.get(key));
+    }
+
+    private SwarmSimulator(int pieceCount, int pieceSize, int pipelineDepth) {
+        this.pieceCount = pieceCount;
+        this.pieceSize = pieceSize;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    private void build(Map<String, String> config) throws P2PFileSharingException {
+        int peerCount = intValue(config, "Peers");
+        int seeders = intValue(config, "Seeders");
+        int degree = Math.min(intValue(config, "Degree"), peerCount - 1);
+        long latency = TimeUnit.MILLISECONDS.toNanos(intValue(config, "LatencyMs"));
+        int unchokingInterval = intValue(config, "UnchokingInterval");
+        this.endgame = Boolean.parseBoolean(config.get("Endgame"));
+        Random random = new Random(Long.parseLong(config.get("Seed")));
+
+        for (int i = 0; i < peerCount; i++) {
+            int bandwidthClass = i < seeders ? CLASS_NAMES.length - 1 : pickClass(random);
+            SimPeer peer = new SimPeer(i, bandwidthClass, i < seeders, random.nextLong(),
+                    (long) (random.nextDouble() * TimeUnit.SECONDS.toNanos(unchokingInterval)));
+            peers.add(peer);
+            if (!peer.seeder) {
+                remaining++;
+            }
+        }
+
+        // Every peer dials random others until it has `degree` neighbors; some end up with more
+        for (SimPeer peer : peers) {
+            while (peer.links.size() < degree) {
+                SimPeer other = peers.get(random.nextInt(peerCount));
+                if (other != peer && !peer.links.containsKey(other.id)) {
+                    long linkLatency = latency / 2 + (long) (random.nextDouble() * latency);
+                    Link there = new Link(peer, other, linkLatency);
+                    Link back = new Link(other, peer, linkLatency);
+                    there.reverse = back;
+                    back.reverse = there;
+                    peer.links.put(other.id, there);
+                    other.links.put(peer.id, back);
+                }
+            }
+        }
+
+        // Slots are handed out at the handshake, and bitfields exchanged right after, before any timer fires
+        for (SimPeer peer : peers) {
+            peer.registry = new PeerRegistry<>(peer.links.size());
+            for (Link link : peer.links.values()) {
+                link.slot = peer.registry.slotFor(link.remote.id);
+                peer.registry.attach(link.slot, link);
+                link.remoteHas.or(link.remote.have);
+                peer.availability.addPeer(link.remoteHas);
+                BitSet missing = (BitSet) link.remoteHas.clone();
+                missing.andNot(peer.have);
+                link.interesting = missing.cardinality();
+                if (link.interesting > 0) {
+                    link.interestedInPeer = true;
+                    link.reverse.peerInterested = true;
+                }
+            }
+        }
+        for (SimPeer peer : peers) {
+            peer.choker = new chokeHandler(unchokingInterval, intValue(config, "OptimisticUnchokingInterval"),
+                    intValue(config, "NumberOfPreferredNeighbors"), peer.id, peer.registry,
+                    () -> peer.have.cardinality() == pieceCount, peer.clock, peer.metrics,
+                    new Random(peer.seed));
+            peer.choker.start();
+        }
+    }
+
+    private static int pickClass(Random random) {
+        double draw = random.nextDouble();
+        for (int i = 0; i < CLASS_SHARE.length - 1; i++) {
+            draw -= CLASS_SHARE[i];
+            if (draw < 0) {
+                return i;
+            }
+        }
+        return CLASS_SHARE.length - 1;
+    }
+
+    private void at(long time, Runnable action) {
+        events.add(new Event(time, sequence++, action));
+    }
+
+    /**
+     * Runs events until every leecher is complete or the time limit passes, sampling the
+     * swarm's choke churn and progress every sampleInterval.
+     */
+    private void run(long limit, long sampleInterval) {
+        sample();
+        long nextSample = sampleInterval;
+        while (remaining > 0 && !events.isEmpty()) {
+            Event event = events.peek();
+            if (event.time > limit) {
+                break;
+            }
+            while (event.time >= nextSample) {
+                now = nextSample;
+                sample();
+                nextSample += sampleInterval;
+            }
+            events.poll();
+            now = event.time;
+            event.action.run();
+            processed++;
+        }
+        sample();
+    }
+
+    private void sample() {
+        long transitions = 0;
+        long downloaded = 0;
+        for (SimPeer peer : peers) {
+            transitions += peer.metrics.getChokeTransitions() + peer.metrics.getUnchokeTransitions();
+            downloaded += peer.downloaded;
+        }
+        timeline.add(new long[] { now, transitions, downloaded, peers.size() - remaining });
+    }
+
+    private void report(Map<String, String> config, long wallNanos) {
+        int seeders = intValue(config, "Seeders");
+        int leechers = peers.size() - seeders;
+        long fileBytes = (long) pieceCount * pieceSize;
+        System.out.printf("peers %d (%d seeders), degree %s, file %d x %d bytes, preferred %s, intervals %s/%s s,"
+                + " pipeline %s, seed %s%n", peers.size(), seeders, config.get("Degree"), pieceCount, pieceSize,
+                config.get("NumberOfPreferredNeighbors"), config.get("UnchokingInterval"),
+                config.get("OptimisticUnchokingInterval"), config.get("PipelineDepth"), config.get("Seed"));
+
+        List<Long> times = new ArrayList<>();
+        List<Double> shareRatios = new ArrayList<>();
+        List<Double> rates = new ArrayList<>();
+        long[] classTotal = new long[CLASS_NAMES.length];
+        int[] classComplete = new int[CLASS_NAMES.length];
+        int[] classSize = new int[CLASS_NAMES.length];
+        long digest = 17;
+        for (SimPeer peer : peers) {
+            if (peer.seeder) {
+                continue;
+            }
+            classSize[peer.bandwidthClass]++;
+            digest = digest * 31 + peer.completedAt;
+            if (peer.completedAt < 0) {
+                continue;
+            }
+            times.add(peer.completedAt);
+            classTotal[peer.bandwidthClass] += peer.completedAt;
+            classComplete[peer.bandwidthClass]++;
+            shareRatios.add(peer.uploadedAtCompletion / (double) fileBytes);
+            rates.add(fileBytes / (peer.completedAt / 1e9));
+        }
+        long[] sorted = times.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf("complete %d/%d leechers after %.1f simulated s%n", sorted.length, leechers, now / 1e9);
+        if (sorted.length > 0) {
+            System.out.printf("time to complete s: min %.1f  p10 %.1f  p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n",
+                    sorted[0] / 1e9, percentile(sorted, 0.1) / 1e9, percentile(sorted, 0.5) / 1e9,
+                    percentile(sorted, 0.9) / 1e9, percentile(sorted, 0.99) / 1e9, sorted[sorted.length - 1] / 1e9);
+        }
+        for (int c = 0; c < CLASS_NAMES.length; c++) {
+            if (classSize[c] > 0) {
+                System.out.printf("  %-6s up %5d KB/s  %4d leechers, %4d complete, mean %.1f s%n", CLASS_NAMES[c],
+                        CLASS_UPLOAD[c] / KB, classSize[c], classComplete[c],
+                        classComplete[c] > 0 ? classTotal[c] / 1e9 / classComplete[c] : Double.NaN);
+            }
+        }
+        System.out.printf("fairness (Jain): share ratio at completion %.3f, download rate %.3f%n",
+                jain(shareRatios), jain(rates));
+        long stored = (long) leechers * pieceCount;
+        System.out.printf("duplicate pieces %.2f%% (%d), requests refused while choked %d%n",
+                100.0 * duplicates / Math.max(1, stored), duplicates, rejected);
+        long endgameRequests = 0;
+        long endgameBytes = 0;
+        long savedMillis = 0;
+        long cancelledUploads = 0;
+        for (SimPeer peer : peers) {
+            endgameRequests += peer.metrics.getEndgameRequests();
+            endgameBytes += peer.metrics.getEndgameDuplicateBytes();
+            savedMillis += peer.metrics.getEndgameSavedMillis();
+            cancelledUploads += peer.metrics.getCancelledUploads();
+        }
+        System.out.printf("endgame %s: %d duplicate requests, %d cancels (%d dropped from upload queues),"
+                + " %.1f MB duplicate bytes (%.2f%% of needed), %.1f s saved (%.2f s per leecher)%n",
+                config.get("Endgame"), endgameRequests, cancels, cancelledUploads, endgameBytes / 1048576.0,
+                100.0 * endgameBytes / Math.max(1, stored * pieceSize), savedMillis / 1e3,
+                savedMillis / 1e3 / Math.max(1, leechers));
+
+        System.out.printf("%10s %22s %14s %10s%n", "time s", "choke changes/peer/round", "swarm MB/s", "complete");
+        int stride = Math.max(1, (timeline.size() + MAX_TIMELINE_ROWS - 1) / MAX_TIMELINE_ROWS);
+        double roundsPerNano = 1.0 / TimeUnit.SECONDS.toNanos(intValue(config, "UnchokingInterval"));
+        for (int i = stride; i < timeline.size(); i += stride) {
+            long[] from = timeline.get(i - stride);
+            long[] to = timeline.get(i);
+            double rounds = (to[0] - from[0]) * roundsPerNano;
+            if (rounds <= 0) {
+                continue;
+            }
+            System.out.printf("%10.0f %22.2f %14.1f %9.1f%%%n", to[0] / 1e9,
+                    (to[1] - from[1]) / rounds / peers.size(),
+                    (to[2] - from[2]) / 1048576.0 / ((to[0] - from[0]) / 1e9), 100.0 * to[3] / peers.size());
+        }
+        System.out.printf("%d events in %.2f s wall (%.0f events/s), %.0fx real time, digest %016x%n", processed,
+                wallNanos / 1e9, processed / (wallNanos / 1e9), now / (double) wallNanos, digest);
+    }
+
+    /**
+     * Jain's fairness index: 1 when every value is equal, 1/n when one value holds everything.
+     */
+    private static double jain(List<Double> values) {
+        double sum = 0;
+        double squares = 0;
+        for (double value : values) {
+            sum += value;
+            squares += value * value;
+        }
+        return squares == 0 ? Double.NaN : sum * sum / (values.size() * squares);
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, Math.max(0, (int) Math.ceil(fraction * sorted.length) - 1))];
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * One peer's view of the virtual clock. Its timers start after a random phase so the
+     * swarm's choking rounds are not all in lockstep.
+     */
+    private final class PeerClock implements TaskScheduler {
+        private final long phase;
+        private boolean stopped;
+
+        PeerClock(long phase) {
+            this.phase = phase;
+        }
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public void scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+            long periodNanos = unit.toNanos(period);
+            Runnable tick = new Runnable() {
+                @Override
+                public void run() {
+                    if (!stopped) {
+                        task.run();
+                        at(now + periodNanos, this);
+                    }
+                }
+            };
+            at(now + phase + unit.toNanos(initialDelay), tick);
+        }
+
+        @Override
+        public void shutdown() {
+            stopped = true;
+        }
+    }
+
+    private final class SimPeer {
+        final int id;
+        final int bandwidthClass;
+        final boolean seeder;
+        final long seed;
+        final BitSet have = new BitSet(pieceCount);
+        final Map<Integer, Link> links = new LinkedHashMap<>();
+        PeerRegistry<Link> registry;
+        final AvailabilityIndex availability;
+        final PieceScheduler scheduler;
+        final MetricsRegistry metrics;
+        final PeerClock clock;
+        chokeHandler choker;
+        final ArrayDeque<Link> uploadQueue = new ArrayDeque<>();
+        final ArrayDeque<Integer> uploadQueuePieces = new ArrayDeque<>();
+        boolean uploading;
+        long uploaded;
+        long downloaded;
+        long uploadedAtCompletion;
+        long completedAt = -1;
+
+        SimPeer(int id, int bandwidthClass, boolean seeder, long seed, long phase) {
+            this.id = id;
+            this.bandwidthClass = bandwidthClass;
+            this.seeder = seeder;
+            this.seed = seed;
+            if (seeder) {
+                have.set(0, pieceCount);
+            }
+            this.availability = new AvailabilityIndex(pieceCount, have, new Random(seed));
+            this.scheduler = new PieceScheduler(availability, pieceCount, endgame);
+            this.metrics = new MetricsRegistry(id);
+            this.clock = new PeerClock(phase);
+        }
+
+        /**
+         * Tops up the request window to a neighbor that has us unchoked.
+         */
+        void request(Link link) {
+            long raceAfterNanos = scheduler.isEndgame()
+                    ? TimeUnit.MICROSECONDS.toNanos(metrics.recentRequestLatencyP50Micros(now))
+                    : Long.MAX_VALUE;
+            while (!link.chokedByPeer && link.pipeline.hasCapacity()) {
+                int pieceIndex = scheduler.assign(link.slot, link.remoteHas, now, raceAfterNanos);
+                if (pieceIndex < 0) {
+                    return;
+                }
+                link.pipeline.requestSent(pieceIndex, now);
+                if (scheduler.getRequesterCount(pieceIndex) > 1) {
+                    metrics.endgameRequest();
+                }
+                Link uploaderSide = link.reverse;
+                at(now + link.latency, () -> link.remote.serve(uploaderSide, pieceIndex));
+            }
+        }
+
+        void serve(Link link, int pieceIndex) {
+            uploadQueue.add(link);
+            uploadQueuePieces.add(pieceIndex);
+            if (!uploading) {
+                uploadNext();
+            }
+        }
+
+        void cancelReceived(Link link, int pieceIndex) {
+            Iterator<Link> queuedLinks = uploadQueue.iterator();
+            Iterator<Integer> queuedPieces = uploadQueuePieces.iterator();
+            while (queuedLinks.hasNext()) {
+                Link queued = queuedLinks.next();
+                int queuedPiece = queuedPieces.next();
+                if (queued == link && queuedPiece == pieceIndex) {
+                    queuedLinks.remove();
+                    queuedPieces.remove();
+                    metrics.uploadCancelled();
+                    return;
+                }
+            }
+        }
+
+        private void uploadNext() {
+            uploading = false;
+            while (!uploadQueue.isEmpty()) {
+                Link link = uploadQueue.poll();
+                int pieceIndex = uploadQueuePieces.poll();
+                if (link.chokingPeer) {
+                    // PeerHandler drops requests from neighbors it is choking
+                    rejected++;
+                    continue;
+                }
+                SimPeer downloader = link.remote;
+                long bytesPerSecond = Math.min(CLASS_UPLOAD[bandwidthClass], CLASS_DOWNLOAD[downloader.bandwidthClass]);
+                uploading = true;
+                at(now + pieceSize * 1_000_000_000L / bytesPerSecond, () -> {
+                    uploaded += pieceSize;
+                    metrics.forPeer(downloader.id).pieceUploaded(pieceSize);
+                    Link downloaderSide = link.reverse;
+                    at(now + link.latency, () -> downloader.receive(downloaderSide, pieceIndex));
+                    uploadNext();
+                });
+                return;
+            }
+        }
+
+        void receive(Link link, int pieceIndex) {
+            long rtt = link.pipeline.pieceArrived(pieceIndex, pieceSize, now);
+            PeerMetrics neighborMetrics = metrics.forPeer(link.remote.id);
+            neighborMetrics.pieceDownloaded(pieceSize);
+            if (rtt > 0) {
+                neighborMetrics.requestCompleted(rtt);
+            }
+            downloaded += pieceSize;
+            if (have.get(pieceIndex)) {
+                duplicates++;
+                metrics.duplicatePiece();
+                long saved = scheduler.duplicateArrived(link.slot, pieceIndex, now);
+                if (saved >= 0) {
+                    metrics.endgameDuplicate(pieceSize, saved);
+                }
+            } else {
+                store(link, pieceIndex);
+            }
+            request(link);
+        }
+
+        private void store(Link from, int pieceIndex) {
+            have.set(pieceIndex);
+            for (int racing : scheduler.complete(from.slot, pieceIndex, now)) {
+                Link other = registry.get(racing);
+                if (other.pipeline.cancel(pieceIndex)) {
+                    cancels++;
+                    Link uploaderSide = other.reverse;
+                    at(now + other.latency, () -> other.remote.cancelReceived(uploaderSide, pieceIndex));
+                    request(other);
+                }
+            }
+            metrics.pieceStored(0);
+            for (Link link : links.values()) {
+                if (link.remoteHas.get(pieceIndex)) {
+                    link.interesting--;
+                    link.updateInterest();
+                }
+            }
+            if (have.cardinality() == pieceCount) {
+                completedAt = now;
+                uploadedAtCompletion = uploaded;
+                remaining--;
+            }
+            for (Link link : links.values()) {
+                Link neighborSide = link.reverse;
+                at(now + link.latency, () -> neighborSide.local.haveReceived(neighborSide, pieceIndex));
+            }
+        }
+
+        void haveReceived(Link link, int pieceIndex) {
+            link.remoteHas.set(pieceIndex);
+            availability.addHave(pieceIndex);
+            if (!have.get(pieceIndex)) {
+                link.interesting++;
+                link.updateInterest();
+                request(link);
+            }
+        }
+
+        void chokeReceived(Link link) {
+            link.chokedByPeer = true;
+            metrics.forPeer(link.remote.id).chokeReceived();
+            link.pipeline.clear();
+            if (scheduler.releaseAll(link.slot) > 0) {
+                for (Link other : links.values()) {
+                    request(other);
+                }
+            }
+        }
+
+        void unchokeReceived(Link link) {
+            link.chokedByPeer = false;
+            metrics.forPeer(link.remote.id).unchokeReceived();
+            request(link);
+        }
+    }
+
+    /**
+     * One direction of a connection, as seen by its local peer; the chokeHandler drives it
+     * exactly as it drives a PeerHandler.
+     */
+    private final class Link implements Neighbor {
+        final SimPeer local;
+        final SimPeer remote;
+        final long latency;
+        Link reverse;
+        // The remote's slot in local's registry
+        int slot;
+        final BitSet remoteHas = new BitSet(pieceCount);
+        final RequestPipeline pipeline;
+        // Pieces the remote has and we lack, which decides our interest
+        int interesting;
+        boolean interestedInPeer;
+        boolean peerInterested;
+        boolean chokingPeer = true;
+        boolean chokedByPeer = true;
+
+        Link(SimPeer local, SimPeer remote, long latency) {
+            this.local = local;
+            this.remote = remote;
+            this.latency = latency;
+            this.pipeline = new RequestPipeline(pipelineDepth, pieceSize);
+        }
+
+        void updateInterest() {
+            boolean interested = interesting > 0;
+            if (interested != interestedInPeer) {
+                interestedInPeer = interested;
+                at(now + latency, () -> reverse.peerInterested = interested);
+            }
+        }
+
+        @Override
+        public int getRemotePeerID() {
+            return remote.id;
+        }
+
+        @Override
+        public boolean isPeerInterested() {
+            return peerInterested;
+        }
+
+        @Override
+        public boolean isChokingPeer() {
+            return chokingPeer;
+        }
+
+        @Override
+        public boolean choke() {
+            if (chokingPeer) {
+                return false;
+            }
+            chokingPeer = true;
+            at(now + latency, () -> remote.chokeReceived(reverse));
+            return true;
+        }
+
+        @Override
+        public boolean unchoke() {
+            if (!chokingPeer) {
+                return false;
+            }
+            chokingPeer = false;
+            at(now + latency, () -> remote.unchokeReceived(reverse));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import logging.Logger;
+
+/**
+ * Compares the "threads" and "virtual" TransportModes of the blocking transport.
+ * A single seeding peer accepts N simulated neighbors through the same accept path
+ * as peerProcess.startServer; each neighbor then issues a fixed number of piece
+ * requests back to back. The neighbors always run on virtual threads so that only
+ * the serving side changes between the two modes.
+ *
+ * Build and run from the repository root:
+ *   javac -d out -sourcepath src bench/ThreadModeBenchmark.java
+ *   java -cp out ThreadModeBenchmark [requestsPerNeighbor]
+ */
+public class ThreadModeBenchmark {
+    private static final int SERVER_ID = 1;
+    private static final int PIECE_SIZE = 16384;
+    private static final int NUM_PIECES = 64;
+    private static final int[] NEIGHBOR_COUNTS = {10, 100, 1000};
+    private static final String[] MODES = {"threads", "virtual"};
+
+    public static void main(String[] args) throws Exception {
+        int requestsPerNeighbor = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        Logger.setLogLevel(Logger.LogLevel.ERROR);
+
+        File file = File.createTempFile("threadmode", ".bin");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] data = new byte[PIECE_SIZE * NUM_PIECES];
+            new Random(42).nextBytes(data);
+            raf.write(data);
+        }
+
+        System.out.printf("%-8s %9s %12s %12s %12s %10s %10s %12s%n", "mode", "neighbors", "connect ms",
+                "pieces/s", "MB/s", "p50 us", "p99 us", "peak threads");
+        for (int neighbors : NEIGHBOR_COUNTS) {
+            for (String mode : MODES) {
+                run(mode, neighbors, requestsPerNeighbor, file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static void run(String mode, int neighbors, int requestsPerNeighbor, String fileName) throws Exception {
+        FileManager fileManager = new FileManager(PIECE_SIZE * NUM_PIECES, PIECE_SIZE, fileName, true, SERVER_ID);
+        InterestManager interestManager = new InterestManager(NUM_PIECES, fileManager.getBitfield());
+        PieceScheduler scheduler = new PieceScheduler(
+                new AvailabilityIndex(NUM_PIECES, fileManager.getBitfield()), NUM_PIECES);
+        MetricsRegistry metrics = new MetricsRegistry(SERVER_ID);
+        PeerRegistry<PeerHandler> peers = new PeerRegistry<>(neighbors);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.gc();
+        threads.resetPeakThreadCount();
+
+        ExecutorService executor = peerProcess.newExecutor(mode);
+        ServerSocket serverSocket = new ServerSocket(0, Math.max(50, neighbors));
+        executor.submit(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    byte[] response = new byte[32];
+                    in.readFully(response);
+                    int remoteId = handshake.readHandshake(response);
+                    new DataOutputStream(socket.getOutputStream()).write(new handshake(SERVER_ID).createHandshake());
+
+                    SocketPeerConnection connection = new SocketPeerConnection(socket, 5 + Math.max(PIECE_SIZE, (NUM_PIECES + 7) / 8));
+                    PeerHandler handler = new PeerHandler(connection, fileManager, interestManager, peers,
+                            scheduler, new RequestPipeline(1, PIECE_SIZE), metrics, SERVER_ID, remoteId);
+                    // Serve every request without waiting for a choke round
+                    handler.setChokingPeer(false);
+                    connection.setHandler(handler);
+                    executor.submit(connection);
+                } catch (Exception e) {
+                    if (!serverSocket.isClosed()) {
+                        System.err.println("accept failed: " + e.getMessage());
+                    }
+                }
+            }
+        });
+
+        long[] latencies = new long[neighbors * requestsPerNeighbor];
+        AtomicInteger latencyCount = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch connected = new CountDownLatch(neighbors);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(neighbors);
+
+        long connectStart = System.nanoTime();
+        ExecutorService clientExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < neighbors; i++) {
+            int id = clientId(i);
+            clientExecutor.submit(() -> {
+                try (Socket socket = new Socket("127.0.0.1", serverSocket.getLocalPort())) {
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    out.write(new handshake(id).createHandshake());
+                    in.readFully(new byte[32]);
+                    readFrame(in); // the seeder's bitfield
+                    connected.countDown();
+                    go.await();
+
+                    Random random = new Random(id);
+                    ByteBuffer request = ByteBuffer.allocate(9);
+                    for (int r = 0; r < requestsPerNeighbor; r++) {
+                        request.clear();
+                        request.putInt(5).put((byte) '6').putInt(random.nextInt(NUM_PIECES));
+                        long start = System.nanoTime();
+                        out.write(request.array());
+                        byte[] frame;
+                        do {
+                            frame = readFrame(in);
+                        } while (frame[0] != '7');
+                        latencies[latencyCount.getAndIncrement()] = System.nanoTime() - start;
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    connected.countDown();
+                } finally {
+                    done.countDown();
+                }
+                return null;
+            });
+        }
+        connected.await();
+        long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart);
+
+        long transferStart = System.nanoTime();
+        go.countDown();
+        done.await();
+        long transferNanos = System.nanoTime() - transferStart;
+        int peakThreads = threads.getPeakThreadCount();
+
+        serverSocket.close();
+        clientExecutor.shutdown();
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        int completed = latencyCount.get();
+        long[] sorted = Arrays.copyOf(latencies, completed);
+        Arrays.sort(sorted);
+        double seconds = transferNanos / 1e9;
+        System.out.printf("%-8s %9d %12d %12.0f %12.1f %10d %10d %12d%s%n", mode, neighbors, connectMillis,
+                completed / seconds, completed * (double) PIECE_SIZE / seconds / (1024 * 1024),
+                percentile(sorted, 0.50) / 1000, percentile(sorted, 0.99) / 1000, peakThreads,
+                failures.get() > 0 ? "  (" + failures.get() + " neighbors failed)" : "");
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private static int clientId(int i) {
+        return 10000 + i;
+    }
+}
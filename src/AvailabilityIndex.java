@@ -0,0 +1,166 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntPredicate;
+
+/**
+ * Swarm-wide availability counts for the pieces we still need, kept up to date
+ * incrementally from the bitfield and have messages of every connected neighbor.
+ *
+ * Missing pieces are grouped into buckets by how many neighbors hold them, so a
+ * count change is an O(1) move between buckets and a rarest-first pick walks the
+ * buckets from the lowest count up instead of scanning the whole file. Within a
+ * bucket the search starts at a random position to break ties, which keeps
+ * leechers from all chasing the same piece. Pieces we already have are dropped
+ * from the buckets entirely.
+ *
+ * Shared by all PeerHandlers; every method holds the index's monitor briefly and
+ * never does I/O.
+ */
+public class AvailabilityIndex {
+    private static final int OWNED = -1;
+
+    private final int[] count;
+    private final int[] slot;
+    private int[][] buckets;
+    private int[] bucketSize;
+    private final Random random;
+
+    /**
+     * @param numPieces the number of pieces in the file
+     * @param have the pieces we already hold, which are never picked
+     */
+    public AvailabilityIndex(int numPieces, BitSet have) {
+        this(numPieces, have, null);
+    }
+
+    /**
+     * @param random breaks ties between equally rare pieces, so a simulation can repeat its
+     *        picks exactly; null uses the calling thread's ThreadLocalRandom
+     */
+    public AvailabilityIndex(int numPieces, BitSet have, Random random) {
+        this.random = random;
+        this.count = new int[numPieces];
+        this.slot = new int[numPieces];
+        this.buckets = new int[4][];
+        this.bucketSize = new int[4];
+        buckets[0] = new int[numPieces];
+        for (int i = 0; i < numPieces; i++) {
+            if (have.get(i)) {
+                count[i] = OWNED;
+            } else {
+                slot[i] = bucketSize[0];
+                buckets[0][bucketSize[0]++] = i;
+            }
+        }
+    }
+
+    /**
+     * Counts every piece in a neighbor's bitfield.
+     */
+    public synchronized void addPeer(BitSet bitfield) {
+        for (int i = bitfield.nextSetBit(0); i >= 0 && i < count.length; i = bitfield.nextSetBit(i + 1)) {
+            adjust(i, 1);
+        }
+    }
+
+    /**
+     * Uncounts every piece previously added for a neighbor, e.g. when it disconnects.
+     */
+    public synchronized void removePeer(BitSet bitfield) {
+        for (int i = bitfield.nextSetBit(0); i >= 0 && i < count.length; i = bitfield.nextSetBit(i + 1)) {
+            adjust(i, -1);
+        }
+    }
+
+    /**
+     * Counts one more holder of a piece after a have message.
+     */
+    public synchronized void addHave(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < count.length) {
+            adjust(pieceIndex, 1);
+        }
+    }
+
+    /**
+     * Removes a piece we have just completed from further selection.
+     */
+    public synchronized void markOwned(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= count.length || count[pieceIndex] == OWNED) {
+            return;
+        }
+        removeFromBucket(pieceIndex);
+        count[pieceIndex] = OWNED;
+    }
+
+    /**
+     * @return how many connected neighbors hold the piece, or -1 if we already have it
+     */
+    public synchronized int getCount(int pieceIndex) {
+        return count[pieceIndex];
+    }
+
+    /**
+     * Picks the missing piece held by the fewest neighbors among those the given peer has.
+     *
+     * @param peerHas the bitfield of the neighbor we are about to request from
+     * @param skip pieces to pass over, such as ones already requested
+     * @return the chosen piece index, or -1 if the peer has nothing we can use
+     */
+    public synchronized int pickRarest(BitSet peerHas, IntPredicate skip) {
+        Random random = this.random != null ? this.random : ThreadLocalRandom.current();
+        // Bucket 0 holds pieces nobody has announced, so the peer cannot have them either
+        for (int c = 1; c < buckets.length; c++) {
+            int size = bucketSize[c];
+            if (size == 0) {
+                continue;
+            }
+            int[] bucket = buckets[c];
+            int start = random.nextInt(size);
+            for (int k = 0; k < size; k++) {
+                int piece = bucket[(start + k) % size];
+                if (peerHas.get(piece) && !skip.test(piece)) {
+                    return piece;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void adjust(int piece, int delta) {
+        if (count[piece] == OWNED) {
+            return;
+        }
+        int updated = Math.max(0, count[piece] + delta);
+        if (updated == count[piece]) {
+            return;
+        }
+        removeFromBucket(piece);
+        count[piece] = updated;
+        addToBucket(piece);
+    }
+
+    private void removeFromBucket(int piece) {
+        int c = count[piece];
+        int[] bucket = buckets[c];
+        int last = bucket[--bucketSize[c]];
+        bucket[slot[piece]] = last;
+        slot[last] = slot[piece];
+    }
+
+    private void addToBucket(int piece) {
+        int c = count[piece];
+        if (c >= buckets.length) {
+            buckets = Arrays.copyOf(buckets, Math.max(c + 1, buckets.length * 2));
+            bucketSize = Arrays.copyOf(bucketSize, buckets.length);
+        }
+        if (buckets[c] == null) {
+            buckets[c] = new int[8];
+        } else if (bucketSize[c] == buckets[c].length) {
+            buckets[c] = Arrays.copyOf(buckets[c], Math.min(count.length, buckets[c].length * 2));
+        }
+        slot[piece] = bucketSize[c];
+        buckets[c][bucketSize[c]++] = piece;
+    }
+}
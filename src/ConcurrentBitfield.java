@@ -0,0 +1,119 @@
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size set of piece indexes that any number of threads may update and read
+ * at once without a lock. Bits are only ever set, never cleared, which is all a
+ * bitfield of pieces we have needs: a bit is set with a CAS on its 64-bit word, and
+ * readers see each word atomically, so comparing a neighbor's bitfield against it (the
+ * and-not operations InterestManager builds interest from) needs no snapshot while
+ * pieces arrive.
+ *
+ * Every change bumps a version number. A reader that caches something derived from the
+ * bits (FileManager caches the encoded bitfield message) reads the version first and can
+ * reuse its result for as long as the version stays the same.
+ */
+public class ConcurrentBitfield {
+    private final int numBits;
+    private final AtomicLongArray words;
+    private final AtomicLong version = new AtomicLong();
+
+    public ConcurrentBitfield(int numBits) {
+        this.numBits = numBits;
+        this.words = new AtomicLongArray((numBits + 63) >>> 6);
+    }
+
+    public boolean get(int index) {
+        return index >= 0 && index < numBits && (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * @return true if this call set the bit, false if it was already set
+     */
+    public boolean set(int index) {
+        if (index < 0 || index >= numBits) {
+            throw new IndexOutOfBoundsException("Bit " + index + " of " + numBits);
+        }
+        int word = index >>> 6;
+        long mask = 1L << index;
+        long current = words.get(word);
+        while ((current & mask) == 0) {
+            long witness = words.compareAndExchange(word, current, current | mask);
+            if (witness == current) {
+                version.incrementAndGet();
+                return true;
+            }
+            current = witness;
+        }
+        return false;
+    }
+
+    /**
+     * Sets every bit that is set in bits, a word at a time. Bits past the size are ignored.
+     */
+    public void or(BitSet bits) {
+        long[] other = bits.toLongArray();
+        boolean changed = false;
+        for (int i = 0; i < Math.min(other.length, words.length()); i++) {
+            long add = other[i] & wordMask(i);
+            if (add != 0 && (words.getAndAccumulate(i, add, (a, b) -> a | b) & add) != add) {
+                changed = true;
+            }
+        }
+        if (changed) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return how many bits are set in other but not here, counted a word at a time: how
+     *         many pieces a neighbor with that bitfield could give us
+     */
+    public int andNotCardinality(BitSet other) {
+        long[] theirs = other.toLongArray();
+        int count = 0;
+        for (int i = 0; i < Math.min(theirs.length, words.length()); i++) {
+            count += Long.bitCount(theirs[i] & ~words.get(i) & wordMask(i));
+        }
+        return count;
+    }
+
+    /**
+     * @return the bits set in other but not here, a word at a time: the pieces a neighbor
+     *         with that bitfield has that we lack
+     */
+    public BitSet andNot(BitSet other) {
+        long[] theirs = other.toLongArray();
+        int length = Math.min(theirs.length, words.length());
+        long[] result = new long[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = theirs[i] & ~words.get(i) & wordMask(i);
+        }
+        return BitSet.valueOf(result);
+    }
+
+    /**
+     * @return the number of changes so far; read it before the bits to tag a view of them
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return a copy holding at least every bit set before the call
+     */
+    public BitSet toBitSet() {
+        long[] copy = new long[words.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = words.get(i);
+        }
+        return BitSet.valueOf(copy);
+    }
+
+    // The bits of word i that are inside the bitfield
+    private long wordMask(int i) {
+        int remaining = numBits - (i << 6);
+        return remaining >= 64 ? -1L : (1L << remaining) - 1;
+    }
+}
@@ -1,12 +1,16 @@
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
 import logging.Logger;
 import errorhandling.P2PFileSharingException;
 
 /**
- * This class is responsible for parsing and holding configuration information 
+ * This class is responsible for parsing and holding configuration information
  * from the Common.cfg file in a peer-to-peer file sharing application.
+ * The six keys from the project spec are required; any further keys are
+ * optional tuning knobs that fall back to a default when absent.
  */
 public class Config {
 
@@ -16,35 +20,74 @@ public class Config {
     private final String configFileName;
     private final int fileSize;
     private final int pieceSize;
+    private final String transportMode;
+    private final String storageMode;
+    private final boolean zeroCopyUpload;
+    private final boolean writeBehind;
+    private final boolean checkpoint;
+    private final boolean verifyPieces;
+    private final boolean endgame;
+    private final int pipelineDepth;
+    private final int metricsInterval;
+    private final int reactorThreads;
 
     /**
      * Constructor that reads and parses the configuration file.
-     * 
+     *
      * @param fileName The path to the configuration file.
      * @throws P2PFileSharingException If the file is not found or there's an error in reading the file.
      */
     public Config(String fileName) throws P2PFileSharingException {
         try {
             Scanner in = new Scanner(new FileReader(fileName));
-
-            this.numberOfPreferredNeighbors = Integer.parseInt(in.nextLine().split(" ")[1]);
-            this.unchokingInterval = Integer.parseInt(in.nextLine().split(" ")[1]);
-            this.optimisticUnchokingInterval = Integer.parseInt(in.nextLine().split(" ")[1]);
-            this.configFileName = in.nextLine().split(" ")[1];
-            this.fileSize = Integer.parseInt(in.nextLine().split(" ")[1]);
-            this.pieceSize = Integer.parseInt(in.nextLine().split(" ")[1]);
-
+            Map<String, String> values = new HashMap<>();
+            while (in.hasNextLine()) {
+                String[] line = in.nextLine().trim().split("\\s+");
+                if (line.length >= 2) {
+                    values.put(line[0], line[1]);
+                }
+            }
             in.close();
 
+            this.numberOfPreferredNeighbors = Integer.parseInt(require(values, "NumberOfPreferredNeighbors", fileName));
+            this.unchokingInterval = Integer.parseInt(require(values, "UnchokingInterval", fileName));
+            this.optimisticUnchokingInterval = Integer.parseInt(require(values, "OptimisticUnchokingInterval", fileName));
+            this.configFileName = require(values, "FileName", fileName);
+            this.fileSize = Integer.parseInt(require(values, "FileSize", fileName));
+            this.pieceSize = Integer.parseInt(require(values, "PieceSize", fileName));
+            this.transportMode = values.getOrDefault("TransportMode", "nio");
+            this.storageMode = values.getOrDefault("StorageMode", "file");
+            this.zeroCopyUpload = Boolean.parseBoolean(values.getOrDefault("ZeroCopyUpload", "true"));
+            this.writeBehind = Boolean.parseBoolean(values.getOrDefault("WriteBehind", "false"));
+            this.checkpoint = Boolean.parseBoolean(values.getOrDefault("Checkpoint", "true"));
+            this.verifyPieces = Boolean.parseBoolean(values.getOrDefault("VerifyPieces", "true"));
+            this.endgame = Boolean.parseBoolean(values.getOrDefault("Endgame", "true"));
+            String depth = values.getOrDefault("PipelineDepth", "auto");
+            this.pipelineDepth = "auto".equals(depth) ? 0 : Integer.parseInt(depth);
+            this.metricsInterval = Integer.parseInt(values.getOrDefault("MetricsInterval", "10"));
+            this.reactorThreads = Integer.parseInt(values.getOrDefault("ReactorThreads",
+                    Integer.toString(Runtime.getRuntime().availableProcessors())));
+
             // Log that the configuration file was successfully read.
             Logger.info("Configuration file %s loaded successfully.", fileName);
         } catch (FileNotFoundException e) {
             Logger.error("Configuration file %s not found: %s", fileName, e.getMessage());
-            throw new P2PFileSharingException("Config file not found", 
+            throw new P2PFileSharingException("Config file not found",
                     P2PFileSharingException.ErrorType.FILE_ERROR, e);
         }
     }
 
+    private static String require(Map<String, String> values, String key, String fileName)
+            throws P2PFileSharingException {
+        String value = values.get(key);
+        if (value == null) {
+            Logger.error("Configuration file %s is missing %s", fileName, key);
+            throw new P2PFileSharingException("Missing config key: " + key,
+                    P2PFileSharingException.ErrorType.FILE_ERROR);
+        }
+        return value;
+    }
+
     // Getters for the configuration values
     public int getNumberOfPreferredNeighbors() {
         return numberOfPreferredNeighbors;
@@ -69,4 +112,83 @@ public class Config {
     public int getPieceSize() {
         return pieceSize;
     }
+
+    /**
+     * @return "nio" for the selector-based transport, "threads" for one blocking platform thread
+     *         per connection, or "virtual" for one blocking virtual thread per connection.
+     */
+    public String getTransportMode() {
+        return transportMode;
+    }
+
+    /**
+     * @return "file" to write each piece into the target file as it arrives, "heap" to keep
+     *         pieces in memory and write the file at the end, or "mmap" to serve and store
+     *         pieces directly in a memory-mapped copy of the file.
+     */
+    public String getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * @return whether file-backed stores upload pieces with FileChannel.transferTo
+     */
+    public boolean getZeroCopyUpload() {
+        return zeroCopyUpload;
+    }
+
+    /**
+     * @return whether "StorageMode file" hands piece writes to a background writer that
+     *         forces them to disk in batches
+     */
+    public boolean getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * @return whether leechers record completed pieces in a sidecar checkpoint and resume
+     *         from it after a restart
+     */
+    public boolean getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return whether seeders publish a piece digest manifest and leechers check received
+     *         pieces against it
+     */
+    public boolean getVerifyPieces() {
+        return verifyPieces;
+    }
+
+    /**
+     * @return whether leechers request their last pieces from every unchoked holder and
+     *         cancel the redundant requests once a copy arrives
+     */
+    public boolean getEndgame() {
+        return endgame;
+    }
+
+    /**
+     * @return how many piece requests each connection keeps in flight, or 0 ("PipelineDepth auto")
+     *         to size the window from the measured bandwidth-delay product
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * @return how often, in seconds, the metrics snapshot file is rewritten, or 0 to only
+     *         publish metrics over JMX
+     */
+    public int getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    /**
+     * @return how many selector threads "TransportMode nio" runs; defaults to one per core
+     */
+    public int getReactorThreads() {
+        return reactorThreads;
+    }
 }
@@ -0,0 +1,31 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TaskScheduler on the real clock. Every task runs on one scheduler thread, so tasks
+ * never run concurrently with each other.
+ */
+public class ExecutorTaskScheduler implements TaskScheduler {
+    private final ScheduledExecutorService executor;
+
+    public ExecutorTaskScheduler(ThreadFactory threadFactory) {
+        this.executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        executor.scheduleAtFixedRate(task, initialDelay, period, unit);
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
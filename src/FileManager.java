@@ -1,110 +1,362 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import logging.ConnectionEventLogger;
 import logging.PeerEventLogger;
 import errorhandling.P2PFileSharingException;
 import errorhandling.P2PFileSharingException.ErrorType;
 
+/**
+ * Process-wide piece store. peerProcess creates a single FileManager and every
+ * PeerHandler shares it, so the file is held once no matter how many neighbors
+ * we have and a piece received on one connection can be served on all others.
+ *
+ * Completed pieces are published lock-free through a per-piece state array: the
+ * first store of an index claims it, writes the bytes to the PieceStore, then
+ * publishes it, and readers never block. The bitfield is a ConcurrentBitfield, so
+ * it is lock-free as well. The bytes themselves are written to the target file
+ * as they arrive ("StorageMode file"), kept in a memory-mapped file ("StorageMode
+ * mmap"), or held on the heap until the download completes ("StorageMode heap").
+ */
 public class FileManager {
-    private BitSet piecesHave;
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+    private static final int MISSING = 0;
+    private static final int WRITING = 1;
+    private static final int PRESENT = 2;
+    // Receive buffers kept for reuse; enough for every request a few busy connections have in flight
+    private static final int RECEIVE_BUFFERS = 64;
+
+    private final ConcurrentBitfield piecesHave;
     private final int pieceSize;
     private final int fileSize;
     private final String fileName;
-    private byte[][] filePieces;
+    private final int numPieces;
+    private final PieceStore store;
+    private final ReceiveBufferPool receiveBuffers;
+    private final AtomicIntegerArray pieceState;
+    private final AtomicInteger completedPieces = new AtomicInteger();
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private volatile boolean zeroCopyUpload = true;
+    private volatile PieceCheckpoint checkpoint;
+    private volatile PieceManifest manifest;
+    private final MetricsRegistry metrics;
+    private volatile BitfieldFrame bitfieldFrame;
+    private ForkJoinPool hashPool;
+    private ScheduledExecutorService checkpointWriter;
     private final int peerId; // Assuming peerId is passed to the FileManager for logging
 
     public FileManager(int fileSize, int pieceSize, String fileName, boolean hasFile, int peerId) throws P2PFileSharingException {
+        this(fileSize, pieceSize, fileName, hasFile, peerId, "file");
+    }
+
+    public FileManager(int fileSize, int pieceSize, String fileName, boolean hasFile, int peerId, String storageMode)
+            throws P2PFileSharingException {
+        this(fileSize, pieceSize, fileName, hasFile, peerId, storageMode, false, new MetricsRegistry(peerId));
+    }
+
+    /**
+     * @param metrics the registry storage and upload counters are recorded in
+     */
+    public FileManager(int fileSize, int pieceSize, String fileName, boolean hasFile, int peerId, String storageMode,
+            boolean writeBehind, MetricsRegistry metrics) throws P2PFileSharingException {
         this.fileSize = fileSize;
         this.pieceSize = pieceSize;
         this.fileName = fileName;
         this.peerId = peerId;
-        int numPieces = (fileSize + pieceSize - 1) / pieceSize;
-        this.piecesHave = new BitSet(numPieces);
-        this.filePieces = new byte[numPieces][];
+        this.numPieces = (fileSize + pieceSize - 1) / pieceSize;
+        this.piecesHave = new ConcurrentBitfield(numPieces);
+        this.pieceState = new AtomicIntegerArray(numPieces);
+        this.metrics = metrics;
+        this.receiveBuffers = new ReceiveBufferPool(pieceSize, RECEIVE_BUFFERS, metrics);
 
-        if (hasFile) {
-            piecesHave.set(0, numPieces);
-            try {
-                loadFile();
-            } catch (IOException e) {
-                throw new P2PFileSharingException("Failed to load file: " + fileName, ErrorType.FILE_ERROR, e);
+        try {
+            if ("mmap".equals(storageMode)) {
+                this.store = new MappedPieceStore(fileName, fileSize, pieceSize, hasFile);
+            } else if ("heap".equals(storageMode)) {
+                this.store = new HeapPieceStore(fileName, fileSize, pieceSize, hasFile);
+            } else {
+                this.store = new FilePieceStore(fileName, fileSize, pieceSize, hasFile, writeBehind);
             }
+        } catch (IOException e) {
+            PeerEventLogger.logPeerCommunicationError(peerId, e);
+            throw new P2PFileSharingException("Failed to load file: " + fileName, ErrorType.FILE_ERROR, e);
         }
-    }
 
-    private void loadFile() throws IOException {
-        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
-            for (int i = 0; i < filePieces.length; i++) {
-                int pieceLength = Math.min(pieceSize, (int)file.length() - i * pieceSize);
-                filePieces[i] = new byte[pieceLength];
-                file.seek((long)i * pieceSize);
-                file.readFully(filePieces[i]);
+        if (hasFile) {
+            for (int i = 0; i < numPieces; i++) {
+                pieceState.set(i, PRESENT);
             }
+            BitSet all = new BitSet(numPieces);
+            all.set(0, numPieces);
+            piecesHave.or(all);
+            completedPieces.set(numPieces);
+            completion.complete(null);
             PeerEventLogger.downloadComplete(peerId);
-        } catch (IOException e) {
-            PeerEventLogger.logPeerCommunicationError(peerId, e);
-            throw e;
         }
     }
 
-    public synchronized byte[] getPiece(int index) throws P2PFileSharingException {
-        if (index < 0 || index >= filePieces.length) {
-            throw new P2PFileSharingException("Invalid piece index: " + index, ErrorType.FILE_ERROR);
+    /**
+     * @return a read-only view of the piece, or null if we do not have it yet
+     */
+    public ByteBuffer getPiece(int index) throws P2PFileSharingException {
+        checkIndex(index);
+        if (pieceState.get(index) != PRESENT) {
+            return null;
+        }
+        try {
+            return store.read(index);
+        } catch (IOException e) {
+            throw new P2PFileSharingException("Failed to read piece: " + index, ErrorType.FILE_ERROR, e);
         }
-        return filePieces[index];
     }
 
-    public synchronized void storePiece(int index, byte[] data) throws P2PFileSharingException {
-        if (index < 0 || index >= filePieces.length) {
-            throw new P2PFileSharingException("Invalid piece index: " + index, ErrorType.FILE_ERROR);
+    /**
+     * @return the pool connections read received piece payloads into
+     */
+    public ReceiveBufferPool getReceiveBuffers() {
+        return receiveBuffers;
+    }
+
+    public boolean storePiece(int index, byte[] data) throws P2PFileSharingException {
+        return storePiece(index, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Stores the remaining bytes of data as a received piece. Safe to call from any number
+     * of connections at once; if two neighbors deliver the same piece, only the first copy
+     * is kept. The store copies what it keeps, so the caller may reuse data afterwards.
+     *
+     * @return true if this call added the piece, false if we already had it
+     */
+    public boolean storePiece(int index, ByteBuffer data) throws P2PFileSharingException {
+        checkIndex(index);
+        if (!pieceState.compareAndSet(index, MISSING, WRITING)) {
+            metrics.duplicatePiece();
+            return false;
         }
-        filePieces[index] = data;
+        long started = System.nanoTime();
+        try {
+            store.write(index, data);
+        } catch (IOException e) {
+            pieceState.set(index, MISSING);
+            throw new P2PFileSharingException("Failed to store piece: " + index, ErrorType.FILE_ERROR, e);
+        }
+        pieceState.set(index, PRESENT);
+        metrics.pieceStored(System.nanoTime() - started);
         piecesHave.set(index);
-        if (piecesHave.cardinality() == filePieces.length) {
-            reassembleFile();
+        PieceCheckpoint pieces = checkpoint;
+        if (pieces != null) {
+            pieces.pieceStored(index);
         }
+        // Disk I/O happens outside any monitor so a virtual thread doing it is not pinned
+        if (completedPieces.incrementAndGet() == numPieces) {
+            completeFile();
+        }
+        return true;
     }
 
-    private void reassembleFile() throws P2PFileSharingException {
-        try (FileOutputStream fos = new FileOutputStream(fileName)) {
-            for (byte[] piece : filePieces) {
-                if (piece != null) {
-                    fos.write(piece);
-                } else {
-                    throw new P2PFileSharingException("Missing file piece during reassembly", ErrorType.FILE_ERROR);
-                }
+    private void checkIndex(int index) throws P2PFileSharingException {
+        if (index < 0 || index >= numPieces) {
+            throw new P2PFileSharingException("Invalid piece index: " + index, ErrorType.FILE_ERROR);
+        }
+    }
+
+    private void completeFile() throws P2PFileSharingException {
+        try {
+            store.complete();
+            PieceCheckpoint pieces = checkpoint;
+            if (pieces != null) {
+                checkpointWriter.shutdown();
+                pieces.flush(store);
             }
+            completion.complete(null);
             PeerEventLogger.downloadComplete(peerId);
         } catch (IOException e) {
             throw new P2PFileSharingException("Failed to reassemble file: " + fileName, ErrorType.FILE_ERROR, e);
         }
     }
 
-    public synchronized BitSet getBitfield() {
-        return (BitSet) piecesHave.clone();
+    /**
+     * Loads the piece digests that received pieces are checked against. A peer that has the
+     * file hashes it across all cores and writes "FileName.manifest" for the others; a peer
+     * without it reads that manifest if one was distributed with the config, and otherwise
+     * runs unverified. Call this before enableCheckpoint() so resumed pieces are checked too.
+     *
+     * @return whether verification is enabled
+     */
+    public boolean loadManifest() throws P2PFileSharingException {
+        Path path = Path.of(fileName + PieceManifest.SUFFIX);
+        this.hashPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            if (completedPieces.get() == numPieces) {
+                manifest = PieceManifest.generate(store, fileSize, pieceSize, numPieces, hashPool);
+                manifest.write(path);
+            } else {
+                manifest = PieceManifest.read(path, fileSize, pieceSize, numPieces);
+            }
+        } catch (IOException e) {
+            throw new P2PFileSharingException("Failed to load piece manifest: " + path, ErrorType.FILE_ERROR, e);
+        }
+        return manifest != null;
+    }
+
+    /**
+     * Checks a received piece against the manifest on the hashing pool, off the caller's thread.
+     * Completes with true right away when there is no manifest.
+     */
+    public CompletableFuture<Boolean> verifyPiece(int index, ByteBuffer data) {
+        PieceManifest digests = manifest;
+        if (digests == null) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return CompletableFuture.supplyAsync(() -> digests.verify(index, data), hashPool);
+    }
+
+    /**
+     * Resumes from the checkpoint a previous run left next to the target file, then keeps
+     * it up to date as pieces are stored. Only file-backed stores can resume; call this
+     * right after construction, before the bitfield is advertised.
+     *
+     * @return how many pieces were recovered
+     */
+    public int enableCheckpoint() throws P2PFileSharingException {
+        // The heap store writes nothing until the end, so it has nothing to resume from
+        if (completedPieces.get() == numPieces || store.getFileChannel(0) == null) {
+            return 0;
+        }
+        PieceCheckpoint pieces = new PieceCheckpoint(fileName, fileSize, pieceSize, numPieces);
+        BitSet recovered;
+        try {
+            recovered = pieces.open();
+            if (manifest != null) {
+                // Anything torn or corrupted while we were down is fetched again
+                recovered.andNot(manifest.verifyAll(store, recovered, hashPool));
+            }
+        } catch (IOException e) {
+            throw new P2PFileSharingException("Failed to open checkpoint for: " + fileName, ErrorType.FILE_ERROR, e);
+        }
+        for (int i = recovered.nextSetBit(0); i >= 0; i = recovered.nextSetBit(i + 1)) {
+            pieceState.set(i, PRESENT);
+        }
+        piecesHave.or(recovered);
+        this.checkpoint = pieces;
+        this.checkpointWriter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointWriter.scheduleWithFixedDelay(this::flushCheckpoint, CHECKPOINT_INTERVAL_MS,
+                CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (completedPieces.addAndGet(recovered.cardinality()) == numPieces) {
+            completeFile();
+        }
+        return recovered.cardinality();
+    }
+
+    private void flushCheckpoint() {
+        try {
+            checkpoint.flush(store);
+        } catch (IOException e) {
+            PeerEventLogger.logPeerCommunicationError(peerId, e);
+        }
     }
 
-    public synchronized void updateHave(int pieceIndex) {
-        piecesHave.set(pieceIndex);
+    /**
+     * @return a future completed once every piece is stored and the file is complete on disk
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
     }
 
-    public synchronized void updateBitfield(BitSet bitfield) {
-        piecesHave.or(bitfield);
+    /**
+     * @return a copy of the pieces we have, for callers that keep their own bitfield
+     */
+    public BitSet getBitfield() {
+        return piecesHave.toBitSet();
     }
 
-    public synchronized void sendPiece(int pieceIndex, DataOutputStream out) throws P2PFileSharingException {
-        if (!piecesHave.get(pieceIndex)) {
-            return;
+    /**
+     * @return the encoded bitfield message for the pieces we have, or null if we have none.
+     *         Every connection made between two stored pieces gets the same frame, so it
+     *         must not be modified.
+     */
+    public byte[] getBitfieldMessage() {
+        BitfieldFrame cached = bitfieldFrame;
+        // Read before the bits, so the frame has at least every piece this version counts
+        long version = piecesHave.getVersion();
+        if (cached == null || cached.version() != version) {
+            BitSet pieces = piecesHave.toBitSet();
+            cached = new BitfieldFrame(version, pieces.isEmpty() ? null : message.createBitfieldMessage(pieces));
+            bitfieldFrame = cached;
         }
+        return cached.frame();
+    }
+
+    public boolean hasPiece(int pieceIndex) {
+        return pieceIndex >= 0 && pieceIndex < numPieces && pieceState.get(pieceIndex) == PRESENT;
+    }
+
+    public int getNumPieces() {
+        return numPieces;
+    }
+
+    /**
+     * @return how many pieces we currently hold
+     */
+    public int getNumPiecesHave() {
+        return completedPieces.get();
+    }
 
-        byte[] pieceData = getPiece(pieceIndex);
-        if (pieceData != null) {
-            try {
-                out.writeInt(pieceData.length);
-                out.write(pieceData);
-            } catch (IOException e) {
-                throw new P2PFileSharingException("Failed to send piece: " + pieceIndex, ErrorType.CONNECTION_ERROR, e);
+    /**
+     * Enables or disables the zero-copy upload path. When the store is file-backed and this
+     * is on, piece payloads go from the file to the socket with FileChannel.transferTo.
+     */
+    public void setZeroCopyUpload(boolean zeroCopyUpload) {
+        this.zeroCopyUpload = zeroCopyUpload;
+    }
+
+    /**
+     * @return the number of piece bytes sent, or 0 if we do not have the piece
+     */
+    // Lock-free: pieces are published atomically, and holding a monitor across a blocking
+    // socket write would pin a virtual thread to its carrier for the whole transfer.
+    public int sendPiece(int pieceIndex, PeerConnection connection) throws P2PFileSharingException {
+        checkIndex(pieceIndex);
+        FileChannel file = zeroCopyUpload ? store.getFileChannel(pieceIndex) : null;
+        try {
+            if (file != null) {
+                if (hasPiece(pieceIndex)) {
+                    int length = Math.min(pieceSize, fileSize - pieceIndex * pieceSize);
+                    // The payload is sent straight from the file
+                    connection.sendFileRegion(pieceIndex, file, (long) pieceIndex * pieceSize, length);
+                    metrics.pieceServed(true);
+                    return length;
+                }
+                return 0;
+            }
+
+            ByteBuffer pieceData = getPiece(pieceIndex);
+            if (pieceData != null) {
+                int length = pieceData.remaining();
+                connection.sendPiece(pieceIndex, pieceData);
+                metrics.pieceServed(false);
+                return length;
             }
+            return 0;
+        } catch (IOException e) {
+            throw new P2PFileSharingException("Failed to send piece: " + pieceIndex, ErrorType.CONNECTION_ERROR, e);
         }
     }
+
+    private record BitfieldFrame(long version, byte[] frame) {
+    }
 }
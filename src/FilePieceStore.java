@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writes each received piece at index * pieceSize in a file preallocated to the
+ * full size, as soon as it arrives ("StorageMode file"). Nothing is reassembled at
+ * the end and the heap only ever holds pieces that are on their way to disk.
+ *
+ * With write-behind enabled ("WriteBehind true") the network thread only queues the
+ * piece: a single writer thread drains the queue in batches, writes them, and
+ * issues one force() per batch instead of one per piece. Until its write has been
+ * forced a piece is served from the queued copy. The queue is bounded, so a disk
+ * that cannot keep up slows the download down instead of filling the heap.
+ */
+public class FilePieceStore implements PieceStore {
+    private static final int WRITE_QUEUE_CAPACITY = 256;
+
+    private final int fileSize;
+    private final int pieceSize;
+    private final FileChannel channel;
+    private final boolean writeBehind;
+    private final Map<Integer, byte[]> pending = new ConcurrentHashMap<>();
+    private final BlockingQueue<Object> writeQueue = new LinkedBlockingQueue<>(WRITE_QUEUE_CAPACITY);
+    private volatile IOException writeFailure;
+
+    public FilePieceStore(String fileName, int fileSize, int pieceSize, boolean hasFile, boolean writeBehind)
+            throws IOException {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.writeBehind = writeBehind && !hasFile;
+        Path path = Path.of(fileName);
+        if (hasFile) {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            if (channel.size() < fileSize) {
+                channel.close();
+                throw new IOException("File " + fileName + " is shorter than the configured FileSize");
+            }
+        } else {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE);
+            if (channel.size() > fileSize) {
+                channel.truncate(fileSize);
+            } else if (channel.size() < fileSize && fileSize > 0) {
+                // Extend to the full size up front so piece writes never grow the file
+                channel.write(ByteBuffer.allocate(1), fileSize - 1);
+            }
+        }
+        if (this.writeBehind) {
+            Thread writer = new Thread(this::writeLoop, "piece-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private long offset(int index) {
+        return (long) index * pieceSize;
+    }
+
+    private int length(int index) {
+        return (int) Math.min(pieceSize, fileSize - offset(index));
+    }
+
+    @Override
+    public ByteBuffer read(int index) throws IOException {
+        byte[] queued = pending.get(index);
+        if (queued != null) {
+            return ByteBuffer.wrap(queued).asReadOnlyBuffer();
+        }
+        ByteBuffer piece = ByteBuffer.allocate(length(index));
+        long position = offset(index);
+        while (piece.hasRemaining()) {
+            if (channel.read(piece, position + piece.position()) < 0) {
+                throw new IOException("Unexpected end of file reading piece " + index);
+            }
+        }
+        piece.flip();
+        return piece.asReadOnlyBuffer();
+    }
+
+    @Override
+    public void write(int index, ByteBuffer data) throws IOException {
+        if (data.remaining() != length(index)) {
+            throw new IOException("Piece " + index + " has " + data.remaining() + " bytes, expected " + length(index));
+        }
+        if (!writeBehind) {
+            writeFully(index, data.duplicate());
+            return;
+        }
+        if (writeFailure != null) {
+            throw new IOException("Background piece writer failed", writeFailure);
+        }
+        // The writer thread outlives the caller's buffer, so the queued piece gets its own copy
+        byte[] piece = new byte[data.remaining()];
+        data.get(data.position(), piece);
+        pending.put(index, piece);
+        enqueue(index);
+    }
+
+    private void writeFully(int index, ByteBuffer buffer) throws IOException {
+        long position = offset(index) - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void enqueue(Object item) throws IOException {
+        try {
+            writeQueue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing a piece write");
+        }
+    }
+
+    /**
+     * Drains the queue in batches: writes every queued piece, forces once, and only then
+     * drops the in-memory copies. A CompletableFuture in the queue is a flush barrier that
+     * is completed once everything queued before it is on disk.
+     */
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<>();
+        List<Integer> written = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(writeQueue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            writeQueue.drainTo(batch);
+            List<CompletableFuture<?>> barriers = new ArrayList<>();
+            try {
+                for (Object item : batch) {
+                    if (item instanceof CompletableFuture<?> barrier) {
+                        barriers.add(barrier);
+                    } else {
+                        int index = (Integer) item;
+                        writeFully(index, ByteBuffer.wrap(pending.get(index)));
+                        written.add(index);
+                    }
+                }
+                channel.force(false);
+                for (int index : written) {
+                    pending.remove(index);
+                }
+            } catch (IOException e) {
+                // Pieces stay servable from memory; the failure surfaces on the next write or on complete()
+                writeFailure = e;
+            }
+            batch.clear();
+            written.clear();
+            for (CompletableFuture<?> barrier : barriers) {
+                barrier.complete(null);
+            }
+        }
+    }
+
+    /**
+     * With write-behind, waits until the writer has forced everything queued so far;
+     * otherwise forces the file directly.
+     */
+    @Override
+    public void sync() throws IOException {
+        if (!writeBehind) {
+            channel.force(false);
+            return;
+        }
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        enqueue(flushed);
+        try {
+            flushed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing piece writes");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (writeFailure != null) {
+            throw writeFailure;
+        }
+    }
+
+    @Override
+    public void complete() throws IOException {
+        sync();
+        channel.force(true);
+    }
+
+    @Override
+    public FileChannel getFileChannel(int index) {
+        // A piece still waiting for the writer is not in the file yet
+        return writeBehind && pending.containsKey(index) ? null : channel;
+    }
+}
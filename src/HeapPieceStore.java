@@ -0,0 +1,63 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps every piece in its own heap array and writes the whole file in one pass
+ * once the download completes ("StorageMode heap").
+ */
+public class HeapPieceStore implements PieceStore {
+    private final String fileName;
+    private final byte[][] pieces;
+
+    public HeapPieceStore(String fileName, int fileSize, int pieceSize, boolean hasFile) throws IOException {
+        this.fileName = fileName;
+        this.pieces = new byte[(fileSize + pieceSize - 1) / pieceSize][];
+        if (hasFile) {
+            try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+                for (int i = 0; i < pieces.length; i++) {
+                    int pieceLength = Math.min(pieceSize, (int) file.length() - i * pieceSize);
+                    pieces[i] = new byte[pieceLength];
+                    file.seek((long) i * pieceSize);
+                    file.readFully(pieces[i]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer read(int index) {
+        return ByteBuffer.wrap(pieces[index]).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void write(int index, ByteBuffer data) {
+        byte[] piece = new byte[data.remaining()];
+        data.get(data.position(), piece);
+        pieces[index] = piece;
+    }
+
+    @Override
+    public void sync() {
+        // Nothing reaches the disk before complete()
+    }
+
+    @Override
+    public void complete() throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(fileName)) {
+            for (byte[] piece : pieces) {
+                if (piece == null) {
+                    throw new IOException("Missing file piece during reassembly");
+                }
+                fos.write(piece);
+            }
+        }
+    }
+
+    @Override
+    public FileChannel getFileChannel(int index) {
+        return null;
+    }
+}
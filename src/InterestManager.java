@@ -1,93 +1,194 @@
-import java.util.Set;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
-import logging.PeerEventLogger;
-import errorhandling.P2PFileSharingException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * InterestManager class manages the interest status of peers in the P2P network.
- * It tracks which peers are interested in which pieces of the file.
+ * Process-wide index of which neighbors have pieces we still need, shared by every
+ * PeerHandler. It decides whether we are interested in a neighbor, which is what the
+ * interested / not interested messages we send must say.
+ *
+ * Two indexes are kept in step, with neighbors named by their PeerRegistry slot. Per
+ * slot, a BitSet of the pieces the neighbor has that we lack, and how many there are.
+ * Per piece, the slots of the neighbors that have it, in a growable int array. So
+ * whether we want anything from a neighbor is answered in O(1), and completing a
+ * piece only visits the neighbors that had it.
+ * Our own pieces are a ConcurrentBitfield, so a neighbor's bitfield is compared
+ * against them a 64-bit word at a time.
+ * All updates take one short, memory-only lock, so handlers on any number of threads
+ * can report haves and bitfields at once.
  */
 public class InterestManager {
-    private Map<Integer, Set<Integer>> interestedPeers;
+    private static final int[] NO_SLOTS = new int[0];
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int numPieces;
+    // Guarded by lock
+    private final ConcurrentBitfield ours;
+    private PeerPieces[] peers = new PeerPieces[0];
+    private final int[][] holders;
+    private final int[] holderCount;
 
     /**
-     * Constructor for InterestManager.
+     * @param ours the pieces we already have; copied
      */
-    public InterestManager() {
-        interestedPeers = new ConcurrentHashMap<>();
+    public InterestManager(int numPieces, BitSet ours) {
+        this.numPieces = numPieces;
+        this.ours = new ConcurrentBitfield(numPieces);
+        this.ours.or(ours);
+        this.holders = new int[numPieces][];
+        this.holderCount = new int[numPieces];
     }
 
     /**
-     * Adds a peer's interest in a specific piece.
+     * Records a have message.
      *
-     * @param peerId The ID of the interested peer.
-     * @param pieceIndex The index of the piece the peer is interested in.
+     * @return whether we are interested in the neighbor afterwards
      */
-    public void addInterestedPeer(int peerId, int pieceIndex) {
-        interestedPeers.computeIfAbsent(peerId, k -> new HashSet<>()).add(pieceIndex);
-        // Log the event of adding an interested peer
-        PeerEventLogger.receivedInterestedMessage(peerId, pieceIndex);
+    public boolean peerHas(int slot, int pieceIndex) {
+        lock.lock();
+        try {
+            PeerPieces pieces = piecesOf(slot);
+            if (pieceIndex >= 0 && pieceIndex < numPieces && !ours.get(pieceIndex) && !pieces.wanted.get(pieceIndex)) {
+                pieces.wanted.set(pieceIndex);
+                pieces.count++;
+                addHolder(pieceIndex, slot);
+            }
+            return pieces.count > 0;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Removes a peer's interest in a specific piece.
+     * Records a bitfield message, replacing whatever was known about the neighbor.
      *
-     * @param peerId The ID of the peer.
-     * @param pieceIndex The index of the piece the peer is no longer interested in.
+     * @return whether we are interested in the neighbor
      */
-    public void removeInterestedPeer(int peerId, int pieceIndex) {
-        interestedPeers.computeIfPresent(peerId, (k, v) -> {
-            v.remove(pieceIndex);
-            // Log the event of removing an interested peer
-            PeerEventLogger.receivedNotInterestedMessage(peerId, pieceIndex);
-            return v.isEmpty() ? null : v;
-        });
+    public boolean peerBitfield(int slot, BitSet bitfield) {
+        lock.lock();
+        try {
+            removeHolders(slot);
+            PeerPieces pieces = piecesOf(slot);
+            // Counted a word at a time first, so a neighbor with nothing we lack costs no per-piece work
+            int count = ours.andNotCardinality(bitfield);
+            if (count > 0) {
+                pieces.wanted = ours.andNot(bitfield);
+                pieces.count = count;
+                for (int i = pieces.wanted.nextSetBit(0); i >= 0; i = pieces.wanted.nextSetBit(i + 1)) {
+                    addHolder(i, slot);
+                }
+            }
+            return count > 0;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Removes all pieces a peer is interested in.
-     *
-     * @param peerId The ID of the peer.
+     * Forgets a neighbor that disconnected.
      */
-    public void removeAllInterestedPieces(int peerId) {
-        interestedPeers.remove(peerId);
-        // Log removal of all interested pieces for a peer
-        PeerEventLogger.receivedNotInterestedMessage(peerId, -1);// -1 denotes unknown neighbor
+    public void removePeer(int slot) {
+        lock.lock();
+        try {
+            removeHolders(slot);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Checks if there are any peers interested in a specific piece.
+     * Records a piece we now have. Only the neighbors that held it are visited.
      *
-     * @param pieceIndex The index of the piece.
-     * @return true if any peer is interested in the piece, false otherwise.
+     * @return the slots of the neighbors we were interested in only for this piece, and so
+     *         no longer are
      */
-    public boolean hasInterestedPeers(int pieceIndex) {
-        return interestedPeers.values().stream().anyMatch(set -> set.contains(pieceIndex));
+    public int[] pieceCompleted(int pieceIndex) {
+        lock.lock();
+        try {
+            if (pieceIndex < 0 || pieceIndex >= numPieces || !ours.set(pieceIndex)) {
+                return NO_SLOTS;
+            }
+            int count = holderCount[pieceIndex];
+            int[] slots = holders[pieceIndex];
+            holders[pieceIndex] = null;
+            holderCount[pieceIndex] = 0;
+            int[] lost = NO_SLOTS;
+            int numLost = 0;
+            for (int i = 0; i < count; i++) {
+                PeerPieces pieces = peers[slots[i]];
+                pieces.wanted.clear(pieceIndex);
+                if (--pieces.count == 0) {
+                    if (numLost == lost.length) {
+                        lost = Arrays.copyOf(lost, Math.max(4, numLost * 2));
+                    }
+                    lost[numLost++] = slots[i];
+                }
+            }
+            return numLost == lost.length ? lost : Arrays.copyOf(lost, numLost);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Checks if a specific peer is interested in any piece.
-     *
-     * @param peerId The ID of the peer.
-     * @return true if the peer is interested in at least one piece, false otherwise.
+     * @return whether the neighbor has at least one piece we lack
      */
-    public boolean isPeerInterested(int peerId) {
-        return interestedPeers.containsKey(peerId) && !interestedPeers.get(peerId).isEmpty();
+    public boolean isInterestedIn(int slot) {
+        lock.lock();
+        try {
+            return slot < peers.length && peers[slot] != null && peers[slot].count > 0;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    /**
-     * Retrieves a set of peer IDs that are interested in any of the pieces of the specified peer.
-     *
-     * @param peerId The ID of the peer whose interested peers are to be found.
-     * @return A set of peer IDs interested in the peer's pieces.
-     */
-    public Set<Integer> getPeersInterestedIn(int peerId) {
-        return interestedPeers.entrySet().stream()
-                .filter(entry -> entry.getValue().contains(peerId))
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toSet());
+    private PeerPieces piecesOf(int slot) {
+        if (slot >= peers.length) {
+            peers = Arrays.copyOf(peers, Math.max(slot + 1, peers.length * 2));
+        }
+        PeerPieces pieces = peers[slot];
+        if (pieces == null) {
+            pieces = peers[slot] = new PeerPieces();
+        }
+        return pieces;
+    }
+
+    private void addHolder(int pieceIndex, int slot) {
+        int[] slots = holders[pieceIndex];
+        int count = holderCount[pieceIndex];
+        if (slots == null) {
+            slots = holders[pieceIndex] = new int[4];
+        } else if (count == slots.length) {
+            slots = holders[pieceIndex] = Arrays.copyOf(slots, count * 2);
+        }
+        slots[count] = slot;
+        holderCount[pieceIndex] = count + 1;
+    }
+
+    // Forgets everything known about the slot's pieces
+    private void removeHolders(int slot) {
+        PeerPieces pieces = slot < peers.length ? peers[slot] : null;
+        if (pieces == null) {
+            return;
+        }
+        for (int i = pieces.wanted.nextSetBit(0); i >= 0; i = pieces.wanted.nextSetBit(i + 1)) {
+            int[] slots = holders[i];
+            int count = holderCount[i];
+            for (int j = 0; j < count; j++) {
+                if (slots[j] == slot) {
+                    // Order does not matter: move the last holder into the gap
+                    slots[j] = slots[count - 1];
+                    holderCount[i] = count - 1;
+                    break;
+                }
+            }
+        }
+        pieces.wanted.clear();
+        pieces.count = 0;
+    }
+
+    private static final class PeerPieces {
+        BitSet wanted = new BitSet();
+        int count;
     }
 }
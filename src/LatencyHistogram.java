@@ -0,0 +1,61 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets. Bucket i
+ * counts samples whose value in microseconds needs exactly i bits, i.e. the
+ * range [2^(i-1), 2^i), with bucket 0 holding everything under a microsecond.
+ * Recording is one atomic increment plus one LongAdder add; percentiles are
+ * read from a racy but monotonic snapshot and reported as the bucket's upper
+ * bound, so they are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalMicros = new LongAdder();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        totalMicros.add(micros);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getMeanMicros() {
+        long count = getCount();
+        return count == 0 ? 0 : totalMicros.sum() / count;
+    }
+
+    /**
+     * @param fraction the percentile as a fraction, e.g. 0.99
+     * @return the upper bound in microseconds of the bucket holding that percentile, or 0 if empty
+     */
+    public long getPercentileMicros(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return (1L << i) - 1;
+            }
+        }
+        return (1L << (BUCKETS - 1)) - 1;
+    }
+}
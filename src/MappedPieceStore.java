@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Maps the target file once and serves every piece as a slice of that mapping
+ * ("StorageMode mmap"). Seeders map the existing file read-only, so startup costs
+ * no reads at all; leechers map a file preallocated to the full size and each
+ * received piece is written in place at index * pieceSize. Piece bytes live in
+ * the page cache rather than on the Java heap.
+ */
+public class MappedPieceStore implements PieceStore {
+    private final int fileSize;
+    private final int pieceSize;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+
+    public MappedPieceStore(String fileName, int fileSize, int pieceSize, boolean hasFile) throws IOException {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        Path path = Path.of(fileName);
+        if (hasFile) {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            if (channel.size() < fileSize) {
+                channel.close();
+                throw new IOException("File " + fileName + " is shorter than the configured FileSize");
+            }
+            this.mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        } else {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE);
+            if (channel.size() > fileSize) {
+                channel.truncate(fileSize);
+            }
+            // Mapping past the end of the file grows it to the full size
+            this.mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        }
+    }
+
+    private int offset(int index) {
+        return index * pieceSize;
+    }
+
+    private int length(int index) {
+        return Math.min(pieceSize, fileSize - offset(index));
+    }
+
+    @Override
+    public ByteBuffer read(int index) {
+        return mapping.slice(offset(index), length(index)).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void write(int index, ByteBuffer data) throws IOException {
+        if (data.remaining() != length(index)) {
+            throw new IOException("Piece " + index + " has " + data.remaining() + " bytes, expected " + length(index));
+        }
+        mapping.put(offset(index), data, data.position(), data.remaining());
+    }
+
+    @Override
+    public void sync() {
+        mapping.force();
+    }
+
+    @Override
+    public void complete() {
+        mapping.force();
+    }
+
+    @Override
+    public FileChannel getFileChannel(int index) {
+        return channel;
+    }
+}
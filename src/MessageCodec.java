@@ -0,0 +1,74 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes protocol frames in place, without allocating.
+ *
+ * Encoders write a whole frame (4-byte length prefix, type byte, fixed fields) at the
+ * buffer's position, so a connection can encode straight into its own reusable
+ * outbound buffer. Decoders read a received frame body, the type byte at position()
+ * followed by the payload, as a flyweight view: nothing is copied out of the receive
+ * buffer.
+ */
+public final class MessageCodec {
+    public static final byte CHOKE = '0';
+    public static final byte UNCHOKE = '1';
+    public static final byte INTERESTED = '2';
+    public static final byte NOT_INTERESTED = '3';
+    public static final byte HAVE = '4';
+    public static final byte BITFIELD = '5';
+    public static final byte REQUEST = '6';
+    public static final byte PIECE = '7';
+    public static final byte CANCEL = '8';
+
+    /** A frame with no payload: choke, unchoke, interested and not interested. */
+    public static final int CONTROL_FRAME_LENGTH = 5;
+    /** A frame carrying one piece index: have, request and cancel. */
+    public static final int INDEXED_FRAME_LENGTH = 9;
+    /** The part of a piece frame before its payload. */
+    public static final int PIECE_HEADER_LENGTH = 9;
+    // Offset of the piece payload within a frame body (type byte and piece index)
+    private static final int PIECE_PAYLOAD_OFFSET = 5;
+
+    private MessageCodec() {
+    }
+
+    public static void encodeControl(ByteBuffer out, byte type) {
+        out.putInt(1).put(type);
+    }
+
+    public static void encodeIndexed(ByteBuffer out, byte type, int pieceIndex) {
+        out.putInt(5).put(type).putInt(pieceIndex);
+    }
+
+    /**
+     * Writes the header of a piece frame; the caller sends the length payload bytes after it.
+     */
+    public static void encodePieceHeader(ByteBuffer out, int pieceIndex, int length) {
+        out.putInt(PIECE_PAYLOAD_OFFSET + length).put(PIECE).putInt(pieceIndex);
+    }
+
+    /**
+     * @param body a frame body without its length prefix
+     */
+    public static byte type(ByteBuffer body) {
+        return body.get(body.position());
+    }
+
+    /**
+     * @return the piece index of a have, request, piece or cancel frame body
+     */
+    public static int pieceIndex(ByteBuffer body) {
+        return body.getInt(body.position() + 1);
+    }
+
+    /**
+     * @return the absolute index in body where a piece frame's payload starts
+     */
+    public static int payloadOffset(ByteBuffer body) {
+        return body.position() + PIECE_PAYLOAD_OFFSET;
+    }
+
+    public static int payloadLength(ByteBuffer body) {
+        return body.remaining() - PIECE_PAYLOAD_OFFSET;
+    }
+}
@@ -0,0 +1,437 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import logging.Logger;
+
+/**
+ * Process-wide metrics for one peer: a PeerMetrics per neighbor plus the counters
+ * that belong to the process as a whole (piece storage, choking rounds, the
+ * request latency histogram across all neighbors, connected peers). PeerHandler,
+ * FileManager and chokeHandler record into it without taking locks.
+ *
+ * register() publishes everything as platform MXBeans, and startSnapshots()
+ * periodically writes the same numbers to "metrics_peer_&lt;id&gt;.txt" as
+ * "Key value" lines, one file rewritten in place, so they can be read without a
+ * JMX client.
+ */
+public class MetricsRegistry implements MetricsRegistryMXBean {
+    private static final String DOMAIN = "p2p";
+    // How stale the median request latency handed to the request path may get
+    private static final long MEDIAN_REFRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int peerId;
+    private final Map<Integer, PeerMetrics> neighbors = new ConcurrentHashMap<>();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram storeLatency = new LatencyHistogram();
+    private final AtomicInteger connectedPeers = new AtomicInteger();
+    private final LongAdder preferredNeighborUpdates = new LongAdder();
+    private final LongAdder optimisticUnchokes = new LongAdder();
+    private final LongAdder piecesStored = new LongAdder();
+    private final LongAdder duplicatePieces = new LongAdder();
+    private final LongAdder piecesServed = new LongAdder();
+    private final LongAdder zeroCopyPiecesServed = new LongAdder();
+    private final LongAdder receiveBufferAllocations = new LongAdder();
+    private final LongAdder endgameRequests = new LongAdder();
+    private final LongAdder endgameDuplicateBytes = new LongAdder();
+    private final LongAdder endgameSavedNanos = new LongAdder();
+    private final LongAdder cancelledUploads = new LongAdder();
+    // The median request latency as of medianRefreshedAt; racy refreshes are harmless
+    private volatile long recentMedianMicros;
+    private volatile long medianRefreshedAt = Long.MIN_VALUE;
+    private volatile MBeanServer mbeanServer;
+    private ScheduledExecutorService snapshotWriter;
+
+    public MetricsRegistry(int peerId) {
+        this.peerId = peerId;
+    }
+
+    /**
+     * @return the neighbor's metrics, created on first use and kept across reconnects
+     */
+    public PeerMetrics forPeer(int neighborId) {
+        PeerMetrics metrics = neighbors.get(neighborId);
+        if (metrics != null) {
+            return metrics;
+        }
+        return neighbors.computeIfAbsent(neighborId, id -> {
+            PeerMetrics created = new PeerMetrics(id, requestLatency);
+            registerBean(created, "type=Neighbor,peer=" + peerId + ",neighbor=" + id);
+            return created;
+        });
+    }
+
+    public void peerConnected(PeerMetrics neighbor) {
+        if (!neighbor.setConnected(true)) {
+            connectedPeers.incrementAndGet();
+        }
+    }
+
+    public void peerDisconnected(PeerMetrics neighbor) {
+        neighbor.setInFlightRequests(0);
+        if (neighbor.setConnected(false)) {
+            connectedPeers.decrementAndGet();
+        }
+    }
+
+    public void preferredNeighborsUpdated() {
+        preferredNeighborUpdates.increment();
+    }
+
+    public void optimisticUnchoke() {
+        optimisticUnchokes.increment();
+    }
+
+    public void pieceStored(long nanos) {
+        piecesStored.increment();
+        storeLatency.record(nanos);
+    }
+
+    public void duplicatePiece() {
+        duplicatePieces.increment();
+    }
+
+    /**
+     * Counts a request for a piece another neighbor is already sending us.
+     */
+    public void endgameRequest() {
+        endgameRequests.increment();
+    }
+
+    /**
+     * Counts a late copy of a piece raced in endgame.
+     *
+     * @param savedNanos how much later than the winning copy it came, if it was the copy
+     *                   the first request would have delivered; otherwise 0
+     */
+    public void endgameDuplicate(int bytes, long savedNanos) {
+        endgameDuplicateBytes.add(bytes);
+        endgameSavedNanos.add(savedNanos);
+    }
+
+    /**
+     * Counts a queued upload dropped because the neighbor cancelled its request.
+     */
+    public void uploadCancelled() {
+        cancelledUploads.increment();
+    }
+
+    /**
+     * Counts a receive buffer allocated because the pool had none free.
+     */
+    public void receiveBufferAllocated() {
+        receiveBufferAllocations.increment();
+    }
+
+    public void pieceServed(boolean zeroCopy) {
+        piecesServed.increment();
+        if (zeroCopy) {
+            zeroCopyPiecesServed.increment();
+        }
+    }
+
+    /**
+     * Registers this registry and every neighbor's metrics with the platform MBean server.
+     * Neighbors seen later are registered as they appear. A failure only costs the JMX view.
+     */
+    public void register() {
+        this.mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        registerBean(this, "type=Peer,id=" + peerId);
+        for (PeerMetrics neighbor : neighbors.values()) {
+            registerBean(neighbor, "type=Neighbor,peer=" + peerId + ",neighbor=" + neighbor.getNeighborId());
+        }
+    }
+
+    private void registerBean(Object bean, String properties) {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(bean, name);
+            }
+        } catch (JMException e) {
+            Logger.warn("Could not register metrics bean %s: %s", properties, e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites "metrics_peer_&lt;id&gt;.txt" in the given directory every intervalSeconds on a
+     * daemon thread.
+     */
+    public void startSnapshots(Path directory, int intervalSeconds) {
+        Path path = directory.resolve("metrics_peer_" + peerId + ".txt");
+        this.snapshotWriter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotWriter.scheduleAtFixedRate(() -> {
+            try {
+                writeSnapshot(path);
+            } catch (IOException e) {
+                Logger.warn("Could not write metrics snapshot %s: %s", path, e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes the current values under a temporary name and renames them into place, so a
+     * reader never sees a half-written snapshot.
+     */
+    public void writeSnapshot(Path path) throws IOException {
+        StringBuilder out = new StringBuilder();
+        out.append("# Metrics for peer ").append(peerId).append(" at ").append(LocalDateTime.now()).append('\n');
+        append(out, "ConnectedPeers", getConnectedPeers());
+        append(out, "BytesDownloaded", getBytesDownloaded());
+        append(out, "BytesUploaded", getBytesUploaded());
+        append(out, "InFlightRequests", getInFlightRequests());
+        appendByType(out, "MessagesReceived.", getMessagesReceived());
+        appendByType(out, "MessagesSent.", getMessagesSent());
+        append(out, "ChokeTransitions", getChokeTransitions());
+        append(out, "UnchokeTransitions", getUnchokeTransitions());
+        append(out, "PreferredNeighborUpdates", getPreferredNeighborUpdates());
+        append(out, "OptimisticUnchokes", getOptimisticUnchokes());
+        append(out, "PiecesStored", getPiecesStored());
+        append(out, "DuplicatePieces", getDuplicatePieces());
+        append(out, "PiecesServed", getPiecesServed());
+        append(out, "ZeroCopyPiecesServed", getZeroCopyPiecesServed());
+        append(out, "ReceiveBufferAllocations", getReceiveBufferAllocations());
+        append(out, "EndgameRequests", getEndgameRequests());
+        append(out, "EndgameDuplicateBytes", getEndgameDuplicateBytes());
+        append(out, "EndgameSavedMillis", getEndgameSavedMillis());
+        append(out, "CancelledUploads", getCancelledUploads());
+        append(out, "RequestLatencyCount", getRequestLatencyCount());
+        append(out, "RequestLatencyMeanMicros", getRequestLatencyMeanMicros());
+        append(out, "RequestLatencyP50Micros", getRequestLatencyP50Micros());
+        append(out, "RequestLatencyP90Micros", getRequestLatencyP90Micros());
+        append(out, "RequestLatencyP99Micros", getRequestLatencyP99Micros());
+        append(out, "StoreLatencyP99Micros", getStoreLatencyP99Micros());
+        for (PeerMetrics neighbor : neighbors.values()) {
+            String prefix = "Neighbor." + neighbor.getNeighborId() + ".";
+            append(out, prefix + "Connected", neighbor.isConnected() ? 1 : 0);
+            append(out, prefix + "BytesDownloaded", neighbor.getBytesDownloaded());
+            append(out, prefix + "BytesUploaded", neighbor.getBytesUploaded());
+            append(out, prefix + "ChokesReceived", neighbor.getChokesReceived());
+            append(out, prefix + "UnchokesReceived", neighbor.getUnchokesReceived());
+            append(out, prefix + "ChokesSent", neighbor.getChokesSent());
+            append(out, prefix + "UnchokesSent", neighbor.getUnchokesSent());
+            append(out, prefix + "InFlightRequests", neighbor.getInFlightRequests());
+            append(out, prefix + "RejectedPieces", neighbor.getRejectedPieces());
+            append(out, prefix + "RequestLatencyP50Micros", neighbor.getRequestLatencyP50Micros());
+            append(out, prefix + "RequestLatencyP99Micros", neighbor.getRequestLatencyP99Micros());
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.writeString(temp, out, StandardCharsets.UTF_8);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void append(StringBuilder out, String key, long value) {
+        out.append(key).append(' ').append(value).append('\n');
+    }
+
+    private static void appendByType(StringBuilder out, String prefix, Map<String, Long> counts) {
+        counts.forEach((type, count) -> append(out, prefix + type, count));
+    }
+
+    @Override
+    public int getPeerId() {
+        return peerId;
+    }
+
+    @Override
+    public int getConnectedPeers() {
+        return connectedPeers.get();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        long total = 0;
+        for (PeerMetrics neighbor : neighbors.values()) {
+            total += neighbor.getBytesDownloaded();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        long total = 0;
+        for (PeerMetrics neighbor : neighbors.values()) {
+            total += neighbor.getBytesUploaded();
+        }
+        return total;
+    }
+
+    @Override
+    public int getInFlightRequests() {
+        int total = 0;
+        for (PeerMetrics neighbor : neighbors.values()) {
+            total += neighbor.getInFlightRequests();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getMessagesReceived() {
+        Map<String, Long> totals = new LinkedHashMap<>();
+        for (int i = 0; i < PeerMetrics.MESSAGE_TYPES.length; i++) {
+            long total = 0;
+            for (PeerMetrics neighbor : neighbors.values()) {
+                total += neighbor.getMessagesReceived(i);
+            }
+            totals.put(PeerMetrics.MESSAGE_TYPES[i], total);
+        }
+        return totals;
+    }
+
+    @Override
+    public Map<String, Long> getMessagesSent() {
+        Map<String, Long> totals = new LinkedHashMap<>();
+        for (int i = 0; i < PeerMetrics.MESSAGE_TYPES.length; i++) {
+            long total = 0;
+            for (PeerMetrics neighbor : neighbors.values()) {
+                total += neighbor.getMessagesSent(i);
+            }
+            totals.put(PeerMetrics.MESSAGE_TYPES[i], total);
+        }
+        return totals;
+    }
+
+    /**
+     * @return how many times we have choked a neighbor we were uploading to
+     */
+    @Override
+    public long getChokeTransitions() {
+        long total = 0;
+        for (PeerMetrics neighbor : neighbors.values()) {
+            total += neighbor.getChokesSent();
+        }
+        return total;
+    }
+
+    /**
+     * @return how many times we have unchoked a neighbor, preferred or optimistic
+     */
+    @Override
+    public long getUnchokeTransitions() {
+        long total = 0;
+        for (PeerMetrics neighbor : neighbors.values()) {
+            total += neighbor.getUnchokesSent();
+        }
+        return total;
+    }
+
+    @Override
+    public long getPreferredNeighborUpdates() {
+        return preferredNeighborUpdates.sum();
+    }
+
+    @Override
+    public long getOptimisticUnchokes() {
+        return optimisticUnchokes.sum();
+    }
+
+    @Override
+    public long getPiecesStored() {
+        return piecesStored.sum();
+    }
+
+    @Override
+    public long getDuplicatePieces() {
+        return duplicatePieces.sum();
+    }
+
+    @Override
+    public long getPiecesServed() {
+        return piecesServed.sum();
+    }
+
+    @Override
+    public long getZeroCopyPiecesServed() {
+        return zeroCopyPiecesServed.sum();
+    }
+
+    @Override
+    public long getReceiveBufferAllocations() {
+        return receiveBufferAllocations.sum();
+    }
+
+    @Override
+    public long getEndgameRequests() {
+        return endgameRequests.sum();
+    }
+
+    @Override
+    public long getEndgameDuplicateBytes() {
+        return endgameDuplicateBytes.sum();
+    }
+
+    @Override
+    public long getEndgameSavedMillis() {
+        return endgameSavedNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public long getCancelledUploads() {
+        return cancelledUploads.sum();
+    }
+
+    @Override
+    public long getRequestLatencyCount() {
+        return requestLatency.getCount();
+    }
+
+    @Override
+    public long getRequestLatencyMeanMicros() {
+        return requestLatency.getMeanMicros();
+    }
+
+    @Override
+    public long getRequestLatencyP50Micros() {
+        return requestLatency.getPercentileMicros(0.5);
+    }
+
+    /**
+     * @param nowNanos the caller's clock
+     * @return the median request latency, recomputed at most every 100 ms, so the request
+     *         path can read it on every refill without scanning the histogram
+     */
+    public long recentRequestLatencyP50Micros(long nowNanos) {
+        if (medianRefreshedAt == Long.MIN_VALUE || nowNanos - medianRefreshedAt >= MEDIAN_REFRESH_NANOS) {
+            recentMedianMicros = requestLatency.getPercentileMicros(0.5);
+            medianRefreshedAt = nowNanos;
+        }
+        return recentMedianMicros;
+    }
+
+    @Override
+    public long getRequestLatencyP90Micros() {
+        return requestLatency.getPercentileMicros(0.9);
+    }
+
+    @Override
+    public long getRequestLatencyP99Micros() {
+        return requestLatency.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long getStoreLatencyP99Micros() {
+        return storeLatency.getPercentileMicros(0.99);
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.Map;
+
+/**
+ * JMX view of a peer process's MetricsRegistry, registered as "p2p:type=Peer,id=&lt;peer id&gt;".
+ * Per-neighbor totals are summed at read time.
+ */
+public interface MetricsRegistryMXBean {
+    int getPeerId();
+
+    int getConnectedPeers();
+
+    long getBytesDownloaded();
+
+    long getBytesUploaded();
+
+    int getInFlightRequests();
+
+    Map<String, Long> getMessagesReceived();
+
+    Map<String, Long> getMessagesSent();
+
+    long getChokeTransitions();
+
+    long getUnchokeTransitions();
+
+    long getPreferredNeighborUpdates();
+
+    long getOptimisticUnchokes();
+
+    long getPiecesStored();
+
+    long getDuplicatePieces();
+
+    long getPiecesServed();
+
+    long getZeroCopyPiecesServed();
+
+    /**
+     * @return piece receive buffers allocated because none was free in the pool; flat once
+     *         the pool covers the pieces in flight
+     */
+    long getReceiveBufferAllocations();
+
+    /**
+     * @return requests sent in endgame for pieces another neighbor was already sending
+     */
+    long getEndgameRequests();
+
+    /**
+     * @return bytes of raced pieces that arrived after the winning copy
+     */
+    long getEndgameDuplicateBytes();
+
+    /**
+     * @return summed over raced pieces whose first request was still answered, how much
+     *         later than the winning copy it arrived; a lower bound on the latency endgame saved
+     */
+    long getEndgameSavedMillis();
+
+    /**
+     * @return queued uploads dropped because the neighbor cancelled its request
+     */
+    long getCancelledUploads();
+
+    long getRequestLatencyCount();
+
+    long getRequestLatencyMeanMicros();
+
+    long getRequestLatencyP50Micros();
+
+    long getRequestLatencyP90Micros();
+
+    long getRequestLatencyP99Micros();
+
+    long getStoreLatencyP99Micros();
+}
@@ -0,0 +1,32 @@
+/**
+ * A connected neighbor as the choking logic sees it. PeerHandler is the real
+ * implementation; a simulator can provide its own so chokeHandler runs
+ * unchanged without any sockets.
+ */
+public interface Neighbor {
+    int getRemotePeerID();
+
+    /**
+     * @return whether the neighbor has told us it wants our pieces
+     */
+    boolean isPeerInterested();
+
+    /**
+     * @return whether we are currently choking the neighbor
+     */
+    boolean isChokingPeer();
+
+    /**
+     * Chokes the neighbor and tells it so, unless it is already choked.
+     *
+     * @return whether the neighbor was unchoked before
+     */
+    boolean choke();
+
+    /**
+     * Unchokes the neighbor and tells it so, unless it is already unchoked.
+     *
+     * @return whether the neighbor was choked before
+     */
+    boolean unchoke();
+}
@@ -0,0 +1,574 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import logging.PeerEventLogger;
+import errorhandling.P2PFileSharingException;
+
+/**
+ * One peer connection owned by an NioTransport reactor.
+ * Inbound bytes land in a single reusable buffer that is decoded in place: the
+ * 32-byte handshake first, then length-prefixed frames which are passed to the
+ * PeerHandler through one reusable view over that buffer. A piece whose payload
+ * has not fully arrived is read straight from the socket into a buffer from the
+ * receive pool instead, so the inbound buffer never grows to hold it. Outbound frames are
+ * encoded straight into pooled staging buffers, appended to the one at the tail
+ * of the queue while it has room, and written by the reactor thread whenever the
+ * socket can take them. Frames queued on the reactor thread are flushed once per
+ * selector pass, and the buffers at the head of the queue (staged control frames
+ * and piece payloads alike) go out in one gathering write; piece uploads from a
+ * file-backed store are queued as file regions and sent with transferTo. A cancel
+ * drops a queued piece upload as long as none of it has been written yet.
+ */
+public class NioPeerConnection implements PeerConnection {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int HANDSHAKE_LENGTH = 32;
+    // Control frames are 5 or 9 bytes; larger frames get a buffer of their own size
+    private static final int STAGING_BUFFER_SIZE = 4 * 1024;
+    // Emptied staging buffers kept per connection for reuse
+    private static final int MAX_SPARE_BUFFERS = 4;
+    // Most buffers passed to one gathering write
+    private static final int MAX_GATHER = 16;
+
+    private final NioTransport transport;
+    private final NioTransport.Reactor reactor;
+    private final SocketChannel channel;
+    private final int expectedPeerID;
+    // Guards outbound and spare; held only for non-blocking work
+    private final ReentrantLock outboundLock = new ReentrantLock();
+    private final ArrayDeque<PendingWrite> outbound = new ArrayDeque<>();
+    private final ArrayDeque<StagedWrite> spare = new ArrayDeque<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = this::flushFromReactor;
+    // Reactor thread only
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final BufferWrite[] gathered = new BufferWrite[MAX_GATHER];
+    private boolean flushQueued;
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    // The frame body handed to the PeerHandler, re-pointed at each frame in inbound
+    private ByteBuffer frameView = inbound.duplicate();
+    // Payload of the piece being read directly from the channel, or null between pieces
+    private ByteBuffer piecePayload;
+    private int pieceIndex;
+    private SelectionKey key;
+    private PeerHandler handler;
+    // Set once by whichever thread closes first; only that thread cleans up
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param expectedPeerID the peer ID we dialed, or -1 for accepted connections
+     */
+    NioPeerConnection(NioTransport transport, NioTransport.Reactor reactor, SocketChannel channel, int expectedPeerID) {
+        this.transport = transport;
+        this.reactor = reactor;
+        this.channel = channel;
+        this.expectedPeerID = expectedPeerID;
+    }
+
+    /**
+     * Registers the channel with the reactor's selector. Runs on the reactor thread.
+     */
+    void register(boolean connected) {
+        try {
+            key = channel.register(reactor.selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            if (connected) {
+                sendHandshake();
+            }
+        } catch (IOException e) {
+            closeOnError(e);
+        }
+    }
+
+    void onConnectable() throws IOException {
+        if (channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+            sendHandshake();
+        }
+    }
+
+    private void sendHandshake() throws IOException {
+        send(new handshake(transport.getLocalPeerID()).createHandshake());
+    }
+
+    void onReadable() throws IOException, P2PFileSharingException {
+        if (piecePayload != null) {
+            if (channel.read(piecePayload) < 0) {
+                close();
+                return;
+            }
+            if (piecePayload.hasRemaining()) {
+                return;
+            }
+            ByteBuffer payload = piecePayload.flip();
+            piecePayload = null;
+            handler.handlePieceMessage(pieceIndex, payload);
+            if (closed.get()) {
+                return;
+            }
+        }
+        int read = channel.read(inbound);
+        if (read < 0) {
+            close();
+            return;
+        }
+        inbound.flip();
+        try {
+            if (handler == null && !completeHandshake()) {
+                return;
+            }
+            decodeFrames();
+        } finally {
+            if (!closed.get()) {
+                inbound.compact();
+            }
+        }
+    }
+
+    private boolean completeHandshake() throws P2PFileSharingException {
+        if (inbound.remaining() < HANDSHAKE_LENGTH) {
+            return false;
+        }
+        byte[] response = new byte[HANDSHAKE_LENGTH];
+        inbound.get(response);
+        int remotePeerID = handshake.readHandshake(response);
+        if (expectedPeerID != -1 && remotePeerID != expectedPeerID) {
+            throw new P2PFileSharingException("Incorrect peer ID received in handshake: " + remotePeerID,
+                    P2PFileSharingException.ErrorType.HANDSHAKE_ERROR);
+        }
+        handler = transport.getHandlerFactory().create(remotePeerID, this);
+        handler.onConnected();
+        return true;
+    }
+
+    /**
+     * Dispatches every complete frame currently in the buffer. A partial piece frame moves
+     * to a pooled payload buffer once its header is in; any other partial frame is left in
+     * place (growing the buffer if it cannot fit) until the rest of it arrives. So piece
+     * frames never grow the buffer, whatever the piece size.
+     */
+    private void decodeFrames() throws P2PFileSharingException {
+        while (!closed.get() && inbound.remaining() >= 4) {
+            int start = inbound.position();
+            int length = inbound.getInt(start);
+            if (length < 0 || length > transport.getMaxFrameLength()) {
+                throw new P2PFileSharingException("Invalid frame length: " + length,
+                        P2PFileSharingException.ErrorType.MESSAGE_ERROR);
+            }
+            if (inbound.remaining() < 4 + length) {
+                // Until its type byte is in, a long frame may be a piece and must not grow the buffer
+                boolean mayBePiece = inbound.remaining() < 5 || inbound.get(start + 4) == MessageCodec.PIECE;
+                if (length <= MessageCodec.PIECE_HEADER_LENGTH - 4 || !mayBePiece) {
+                    ensureCapacity(4 + length);
+                } else if (inbound.remaining() >= MessageCodec.PIECE_HEADER_LENGTH) {
+                    beginPiece(start, length);
+                } else {
+                    // Wait for the rest of the piece header
+                    ensureCapacity(MessageCodec.PIECE_HEADER_LENGTH);
+                }
+                return;
+            }
+            if (length > 0) {
+                frameView.limit(start + 4 + length).position(start + 4);
+                handler.handleMessage(frameView);
+            }
+            inbound.position(start + 4 + length);
+        }
+    }
+
+    /**
+     * Moves the part of the piece payload already received into a pooled buffer; onReadable
+     * reads the rest into it and hands it to the PeerHandler once it is full.
+     */
+    private void beginPiece(int start, int length) {
+        int payloadStart = start + MessageCodec.PIECE_HEADER_LENGTH;
+        int received = inbound.limit() - payloadStart;
+        ByteBuffer payload = handler.acquirePieceBuffer(length + 4 - MessageCodec.PIECE_HEADER_LENGTH);
+        payload.put(0, inbound, payloadStart, received).position(received);
+        pieceIndex = inbound.getInt(start + 5);
+        piecePayload = payload;
+        inbound.position(inbound.limit());
+    }
+
+    private void ensureCapacity(int frameSize) {
+        if (inbound.capacity() < frameSize) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(frameSize, inbound.capacity() * 2));
+            larger.put(inbound);
+            larger.flip();
+            inbound = larger;
+            frameView = inbound.duplicate();
+        }
+    }
+
+    @Override
+    public void send(byte[] frame) throws IOException {
+        outboundLock.lock();
+        try {
+            stage(frame.length).put(frame);
+        } finally {
+            outboundLock.unlock();
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public void sendMessage(byte type) throws IOException {
+        outboundLock.lock();
+        try {
+            MessageCodec.encodeControl(stage(MessageCodec.CONTROL_FRAME_LENGTH), type);
+        } finally {
+            outboundLock.unlock();
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public void sendMessage(byte type, int pieceIndex) throws IOException {
+        outboundLock.lock();
+        try {
+            MessageCodec.encodeIndexed(stage(MessageCodec.INDEXED_FRAME_LENGTH), type, pieceIndex);
+        } finally {
+            outboundLock.unlock();
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Queues the payload view itself behind its header, so the piece is never copied;
+     * both go out in the next gathering write, together with any frames around them.
+     */
+    @Override
+    public void sendPiece(int pieceIndex, ByteBuffer payload) throws IOException {
+        outboundLock.lock();
+        try {
+            if (closed.get()) {
+                throw new IOException("Connection closed");
+            }
+            outbound.add(new PieceWrite(pieceIndex, payload));
+        } finally {
+            outboundLock.unlock();
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Queues the header and the file region as one entry, so no other frame can be
+     * written between them. The region goes out with FileChannel.transferTo.
+     */
+    @Override
+    public void sendFileRegion(int pieceIndex, FileChannel file, long position, int length) throws IOException {
+        outboundLock.lock();
+        try {
+            if (closed.get()) {
+                throw new IOException("Connection closed");
+            }
+            outbound.add(new FileRegionWrite(pieceIndex, file, position, length));
+        } finally {
+            outboundLock.unlock();
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * A piece frame waits in the queue as one entry, header and payload together, so one
+     * that has not started to go out can be taken out whole.
+     */
+    @Override
+    public boolean cancelPiece(int pieceIndex) {
+        outboundLock.lock();
+        try {
+            for (Iterator<PendingWrite> it = outbound.iterator(); it.hasNext();) {
+                if (it.next() instanceof QueuedPiece piece && piece.isUnsent(pieceIndex)) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a staging buffer at the tail of the queue with room for the given number of
+     * bytes, to encode the next frame into. Caller holds outboundLock.
+     */
+    private ByteBuffer stage(int bytes) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Connection closed");
+        }
+        if (outbound.peekLast() instanceof StagedWrite tail && tail.buffer.remaining() >= bytes) {
+            return tail.buffer;
+        }
+        StagedWrite staged = spare.poll();
+        if (staged == null || staged.buffer.capacity() < bytes) {
+            staged = new StagedWrite(Math.max(STAGING_BUFFER_SIZE, bytes));
+        }
+        outbound.add(staged);
+        return staged.buffer;
+    }
+
+    private void scheduleFlush() {
+        if (reactor.inReactorThread()) {
+            if (!flushQueued) {
+                flushQueued = true;
+                reactor.flushAfterPass(this);
+            }
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            reactor.execute(flushTask);
+        }
+    }
+
+    private void flushFromReactor() {
+        flushScheduled.set(false);
+        try {
+            flush();
+        } catch (IOException e) {
+            closeOnError(e);
+        }
+    }
+
+    /**
+     * Called by the reactor at the end of a pass for connections that queued frames on it.
+     */
+    void flushQueued() {
+        flushQueued = false;
+        try {
+            flush();
+        } catch (IOException e) {
+            closeOnError(e);
+        }
+    }
+
+    /**
+     * Writes as much of the outbound queue as the socket accepts, and keeps OP_WRITE
+     * armed only while something is left over. Runs on the reactor thread.
+     */
+    void flush() throws IOException {
+        if (key == null || closed.get() || !channel.isConnected()) {
+            return;
+        }
+        outboundLock.lock();
+        try {
+            PendingWrite head;
+            while ((head = outbound.peek()) != null) {
+                boolean written = head instanceof FileRegionWrite region ? region.writeTo(channel) : writeBuffers();
+                if (!written) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (head instanceof FileRegionWrite) {
+                    outbound.poll();
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the run of buffers at the head of the queue with one gathering write and
+     * removes the ones that went out completely. Caller holds outboundLock.
+     *
+     * @return whether the whole run was written
+     */
+    private boolean writeBuffers() throws IOException {
+        int count = 0;
+        int buffers = 0;
+        for (PendingWrite write : outbound) {
+            if (buffers + 2 > MAX_GATHER || !(write instanceof BufferWrite buffer)) {
+                break;
+            }
+            gathered[count++] = buffer;
+            buffers = buffer.prepare(gather, buffers);
+        }
+        channel.write(gather, 0, buffers);
+        Arrays.fill(gather, 0, buffers, null);
+        boolean complete = true;
+        for (int i = 0; i < count; i++) {
+            boolean written = gathered[i].finish();
+            if (written && complete) {
+                outbound.poll();
+                if (gathered[i] instanceof StagedWrite staged && spare.size() < MAX_SPARE_BUFFERS) {
+                    spare.add(staged);
+                }
+            } else {
+                complete = false;
+            }
+            gathered[i] = null;
+        }
+        return complete;
+    }
+
+    /**
+     * One queued outbound item.
+     */
+    private interface PendingWrite {
+    }
+
+    /**
+     * A queued piece frame, which a cancel can remove until its first byte is written.
+     */
+    private interface QueuedPiece extends PendingWrite {
+        boolean isUnsent(int pieceIndex);
+    }
+
+    /**
+     * An item whose bytes are in buffers, so consecutive ones can share a gathering write.
+     */
+    private interface BufferWrite extends PendingWrite {
+        /**
+         * Puts the buffers still to be written (at most two) into gather from index on.
+         *
+         * @return the index after the last buffer added
+         */
+        int prepare(ByteBuffer[] gather, int index);
+
+        /**
+         * Called after the write with the buffer prepare() returned.
+         *
+         * @return whether every byte has now been written
+         */
+        boolean finish();
+    }
+
+    /**
+     * Encoded frames waiting to be written. The buffer stays in write mode so more frames
+     * can be appended until the reactor drains it.
+     */
+    private static final class StagedWrite implements BufferWrite {
+        private final ByteBuffer buffer;
+
+        StagedWrite(int capacity) {
+            this.buffer = ByteBuffer.allocate(capacity);
+        }
+
+        @Override
+        public int prepare(ByteBuffer[] gather, int index) {
+            gather[index] = buffer.flip();
+            return index + 1;
+        }
+
+        @Override
+        public boolean finish() {
+            boolean written = !buffer.hasRemaining();
+            buffer.compact();
+            return written;
+        }
+    }
+
+    /**
+     * A piece frame whose payload is sent from its stored view, without copying.
+     */
+    private static final class PieceWrite implements BufferWrite, QueuedPiece {
+        private final ByteBuffer header = ByteBuffer.allocate(MessageCodec.PIECE_HEADER_LENGTH);
+        private final int pieceIndex;
+        private final ByteBuffer payload;
+
+        PieceWrite(int pieceIndex, ByteBuffer payload) {
+            MessageCodec.encodePieceHeader(header, pieceIndex, payload.remaining());
+            header.flip();
+            this.pieceIndex = pieceIndex;
+            this.payload = payload;
+        }
+
+        @Override
+        public boolean isUnsent(int index) {
+            return index == pieceIndex && header.position() == 0;
+        }
+
+        @Override
+        public int prepare(ByteBuffer[] gather, int index) {
+            if (header.hasRemaining()) {
+                gather[index++] = header;
+            }
+            gather[index] = payload;
+            return index + 1;
+        }
+
+        @Override
+        public boolean finish() {
+            return !payload.hasRemaining();
+        }
+    }
+
+    private static final class FileRegionWrite implements QueuedPiece {
+        private final ByteBuffer header = ByteBuffer.allocate(MessageCodec.PIECE_HEADER_LENGTH);
+        private final int pieceIndex;
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+
+        FileRegionWrite(int pieceIndex, FileChannel file, long position, long length) {
+            MessageCodec.encodePieceHeader(header, pieceIndex, (int) length);
+            header.flip();
+            this.pieceIndex = pieceIndex;
+            this.file = file;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public boolean isUnsent(int index) {
+            return index == pieceIndex && header.position() == 0;
+        }
+
+        boolean writeTo(SocketChannel channel) throws IOException {
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    return false;
+                }
+            }
+            while (remaining > 0) {
+                long written = file.transferTo(position, remaining, channel);
+                if (written <= 0) {
+                    return false;
+                }
+                position += written;
+                remaining -= written;
+            }
+            return true;
+        }
+    }
+
+    void closeOnError(Exception e) {
+        if (!closed.get()) {
+            System.err.println("Error in PeerHandler: " + e.getMessage());
+            PeerEventLogger.logPeerCommunicationError(transport.getLocalPeerID(), e);
+        }
+        close();
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        // A half-read piece payload is left to the GC: close() may run off the reactor thread
+        // while it is still reading into it, so it cannot safely go back to the pool here
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing resources: " + e.getMessage());
+        }
+        outboundLock.lock();
+        try {
+            outbound.clear();
+        } finally {
+            outboundLock.unlock();
+        }
+        if (handler != null) {
+            handler.cleanUpResources();
+        }
+    }
+}
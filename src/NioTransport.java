@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import logging.Logger;
+import errorhandling.P2PFileSharingException;
+
+/**
+ * Non-blocking peer transport built on ServerSocketChannel/SocketChannel.
+ * A fixed number of reactors (one Selector and one thread each, by default one
+ * per core) own every connection in the process. The listening socket lives on
+ * the first reactor and accepted channels are spread round-robin over all of them,
+ * so the thread count stays constant no matter how many neighbors we have.
+ */
+public class NioTransport {
+
+    /**
+     * Builds the protocol handler for a connection once its handshake has completed.
+     */
+    public interface HandlerFactory {
+        PeerHandler create(int remotePeerID, PeerConnection connection) throws P2PFileSharingException;
+    }
+
+    private final int localPeerID;
+    private final int maxFrameLength;
+    private final HandlerFactory handlerFactory;
+    private final Reactor[] reactors;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * @param localPeerID our own peer ID, sent in every handshake
+     * @param reactorCount number of selector threads to run
+     * @param maxFrameLength largest frame body we accept before dropping the connection
+     * @param handlerFactory creates the PeerHandler for each handshaken connection
+     */
+    public NioTransport(int localPeerID, int reactorCount, int maxFrameLength, HandlerFactory handlerFactory)
+            throws IOException {
+        this.localPeerID = localPeerID;
+        this.maxFrameLength = maxFrameLength;
+        this.handlerFactory = handlerFactory;
+        this.reactors = new Reactor[Math.max(1, reactorCount)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(i);
+        }
+        for (Reactor reactor : reactors) {
+            reactor.thread.start();
+        }
+    }
+
+    /**
+     * Starts accepting incoming connections on the given port.
+     */
+    public void listen(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        reactors[0].execute(() -> {
+            try {
+                serverChannel.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                Logger.error("Failed to register server channel: %s", e.getMessage());
+            }
+        });
+        Logger.info("NIO transport listening on port %d with %d reactors", port, reactors.length);
+    }
+
+    /**
+     * Starts a non-blocking connect to a peer. The handshake and handler creation
+     * happen later on the owning reactor.
+     *
+     * @param expectedPeerID the ID the remote side must present in its handshake
+     */
+    public void connect(String host, int port, int expectedPeerID) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        boolean connected = channel.connect(new InetSocketAddress(host, port));
+        Reactor reactor = nextReactor();
+        NioPeerConnection connection = new NioPeerConnection(this, reactor, channel, expectedPeerID);
+        reactor.execute(() -> connection.register(connected));
+    }
+
+    /**
+     * Stops all reactors and closes the listening socket.
+     */
+    public void shutdown() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            Logger.error("Error closing server channel: %s", e.getMessage());
+        }
+        for (Reactor reactor : reactors) {
+            reactor.running = false;
+            reactor.selector.wakeup();
+        }
+    }
+
+    int getLocalPeerID() {
+        return localPeerID;
+    }
+
+    int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    HandlerFactory getHandlerFactory() {
+        return handlerFactory;
+    }
+
+    private Reactor nextReactor() {
+        return reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Reactor reactor = nextReactor();
+            NioPeerConnection connection = new NioPeerConnection(this, reactor, channel, -1);
+            reactor.execute(() -> connection.register(true));
+        }
+    }
+
+    /**
+     * One selector loop. All I/O for the connections registered here runs on its thread;
+     * other threads hand work over through execute().
+     */
+    final class Reactor implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Connections with frames queued during this pass; only touched on the reactor thread
+        private final ArrayDeque<NioPeerConnection> unflushed = new ArrayDeque<>();
+        private volatile boolean running = true;
+
+        Reactor(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-reactor-" + index);
+        }
+
+        boolean inReactorThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inReactorThread()) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Flushes the connection once the current pass over the selected keys is done, so
+         * every frame queued while handling one batch of input goes out in one write.
+         * Reactor thread only.
+         */
+        void flushAfterPass(NioPeerConnection connection) {
+            unflushed.add(connection);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    // Tasks queued from this thread don't wake the selector, so drain them first
+                    runTasks();
+                    flushConnections();
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        dispatch(key);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                Logger.error("Reactor %s stopped: %s", thread.getName(), e.getMessage());
+            } finally {
+                if (selector.isOpen()) {
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof NioPeerConnection) {
+                            ((NioPeerConnection) key.attachment()).close();
+                        }
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    Logger.error("Error closing selector: %s", e.getMessage());
+                }
+            }
+        }
+
+        private void flushConnections() {
+            NioPeerConnection connection;
+            while ((connection = unflushed.poll()) != null) {
+                connection.flushQueued();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void dispatch(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                try {
+                    accept((ServerSocketChannel) key.channel());
+                } catch (IOException e) {
+                    Logger.error("Error accepting connection: %s", e.getMessage());
+                }
+                return;
+            }
+            NioPeerConnection connection = (NioPeerConnection) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    connection.onConnectable();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            } catch (IOException | P2PFileSharingException | RuntimeException e) {
+                connection.closeOnError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A transport-level link to a single remote peer. PeerHandler talks to its
+ * neighbor only through this interface, so the same protocol logic runs on top
+ * of a blocking socket thread or a selector-driven channel.
+ *
+ * The typed send methods encode their frame with MessageCodec straight into the
+ * connection's own reusable buffers, so steady-state traffic allocates nothing
+ * per message. Implementations may write immediately or queue the frame for the
+ * I/O thread; either way frames go out in the order they were sent.
+ */
+public interface PeerConnection {
+
+    /**
+     * Sends one complete, already encoded frame (4-byte length prefix, type byte and
+     * payload), or the handshake. Meant for the rare messages such as the bitfield.
+     *
+     * @param frame the encoded message
+     * @throws IOException if the connection is already closed or the write fails
+     */
+    void send(byte[] frame) throws IOException;
+
+    /**
+     * Sends a frame without payload: choke, unchoke, interested or not interested.
+     */
+    void sendMessage(byte type) throws IOException;
+
+    /**
+     * Sends a frame carrying one piece index: have, request or cancel.
+     */
+    void sendMessage(byte type, int pieceIndex) throws IOException;
+
+    /**
+     * Sends a piece frame whose payload is the remaining bytes of payload. The connection
+     * may hold on to the buffer until it has been written, so its bytes must not change;
+     * the piece views FileManager hands out never do.
+     */
+    void sendPiece(int pieceIndex, ByteBuffer payload) throws IOException;
+
+    /**
+     * Sends a piece frame whose payload is a region of a file: the header first, then
+     * {@code length} bytes starting at {@code position}, with nothing interleaved.
+     * Implementations use FileChannel.transferTo so the payload need not pass through the heap.
+     */
+    void sendFileRegion(int pieceIndex, FileChannel file, long position, int length) throws IOException;
+
+    /**
+     * Drops a piece frame queued for the index, if none of it has been written yet, after
+     * the neighbor cancelled its request.
+     *
+     * @return whether a queued piece was dropped
+     */
+    boolean cancelPiece(int pieceIndex);
+
+    /**
+     * Closes the underlying socket. Safe to call more than once.
+     */
+    void close();
+}
@@ -1,133 +1,106 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import logging.ConnectionEventLogger;
-import logging.PeerEventLogger;
 import logging.Logger;
+import logging.PeerEventLogger;
 import errorhandling.P2PFileSharingException;
 
-public class PeerHandler implements Runnable {
-    private Socket peerSocket;
-    private DataInputStream in;
-    private DataOutputStream out;
+/**
+ * Protocol logic for one neighbor. The handler is transport-agnostic: frames
+ * arrive through handleMessage() from whichever PeerConnection owns the socket
+ * (a blocking reader thread or an NIO reactor), and replies go back out through
+ * that same connection.
+ */
+public class PeerHandler implements Neighbor {
+    // Corrupt pieces a neighbor may send before we drop the connection
+    private static final int MAX_HASH_FAILURES = 3;
+
+    private final PeerConnection connection;
     private FileManager fileManager;
     private InterestManager interestManager;
-    private HashMap<Integer, BitSet> pieceAvailability;
-    private boolean chokedByPeer = false;
-    private final Map<Socket, Integer> socketToPeerIdMap;
+    private final PeerRegistry<PeerHandler> peers;
+    private final PieceScheduler scheduler;
+    private final AvailabilityIndex availability;
+    // Guards the pipeline and peerHas: requests are topped up from this connection's own
+    // thread and, when another neighbor releases pieces, from that neighbor's thread as well
+    private final ReentrantLock requestLock = new ReentrantLock();
+    // Guards what we last told the neighbor about our interest in it
+    private final ReentrantLock interestLock = new ReentrantLock();
+    private boolean interestAnnounced;
+    private boolean interestedInPeer;
+    private final RequestPipeline pipeline;
+    private final MetricsRegistry metrics;
+    private final PeerMetrics peerMetrics;
+    // The pieces this neighbor has announced, which it has also added to the availability counts
+    private final BitSet peerHas = new BitSet();
+    // Every connection starts out choked in both directions until an unchoke says otherwise
+    private volatile boolean chokedByPeer = true;
+    private volatile boolean chokingPeer = true;
+    private volatile boolean peerInterested;
+    private final AtomicInteger hashFailures = new AtomicInteger();
     private int requestedPieceIndex;
-    private int remotePeerID;
-
-    public PeerHandler(Socket socket, FileManager fileManager, InterestManager interestManager,
-            HashMap<Integer, BitSet> pieceAvailability, Map<Socket, Integer> socketMap) throws IOException {
-        this.peerSocket = socket;
-        this.in = new DataInputStream(peerSocket.getInputStream());
-        this.out = new DataOutputStream(peerSocket.getOutputStream());
+    private final int localPeerID;
+    private final int remotePeerID;
+    // The neighbor's PeerRegistry slot, which names it to the scheduler and the InterestManager
+    private final int slot;
+
+    /**
+     * @throws P2PFileSharingException if the registry has no slot left for the neighbor
+     */
+    public PeerHandler(PeerConnection connection, FileManager fileManager, InterestManager interestManager,
+            PeerRegistry<PeerHandler> peers, PieceScheduler scheduler, RequestPipeline pipeline,
+            MetricsRegistry metrics, int localPeerID, int remotePeerID) throws P2PFileSharingException {
+        this.connection = connection;
         this.fileManager = fileManager;
         this.interestManager = interestManager;
-        this.pieceAvailability = pieceAvailability;
-        this.socketToPeerIdMap = socketMap;
-        
-    }
-
-    public void setRemotePeerID(int remotePeerID) {
+        this.peers = peers;
+        this.slot = peers.slotFor(remotePeerID);
+        this.scheduler = scheduler;
+        this.availability = scheduler.getAvailability();
+        this.pipeline = pipeline;
+        this.metrics = metrics;
+        this.peerMetrics = metrics.forPeer(remotePeerID);
+        this.localPeerID = localPeerID;
         this.remotePeerID = remotePeerID;
     }
 
-    private int getPeerIdFromSocket(Socket socket) {
-        Logger.info("MEOWWW " + socketToPeerIdMap.toString());
-        Logger.info("Current socketToPeerIdMap: " + socketToPeerIdMap.toString());
-
-        return socketToPeerIdMap.getOrDefault(socket, -1);
+    public int getLocalPeerID() {
+        return localPeerID;
     }
 
-    @Override
-    public void run() {
-        
-        try {
-            performHandshake();
-            while (true) {
-                if (peerSocket.isClosed()) {
-                    break;
-                }
-                int length = in.readInt();
-                if (length > 0) {
-                    byte[] message = new byte[length];
-                    in.readFully(message);
-                    handleMessage(message);
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Error in PeerHandler: " + e.getMessage());
-            // Handle error related to peer communication
-            // Log this error
-            PeerEventLogger.logPeerCommunicationError(getPeerIdFromSocket(peerSocket), e);
-        } catch (P2PFileSharingException e) {
-            System.err.println("Error in PeerHandler: " + e.getMessage());
-            // Handle P2PFileSharingException
-            // Log this error
-            PeerEventLogger.logPeerCommunicationError(getPeerIdFromSocket(peerSocket), e);
-        } finally {
-            cleanUpResources();
-        }
+    public int getRemotePeerID() {
+        return remotePeerID;
     }
 
-    private void performHandshake() throws P2PFileSharingException {
-        try {
-            handshake myHandshake = new handshake(getPeerIdFromSocket(peerSocket));
-            Logger.info("handshake peer ID of other: " + getPeerIdFromSocket(peerSocket));
-            byte[] handshakeMessage = myHandshake.createHandshake();
-    
-            // Log the handshake message being sent
-            Logger.info("Sending handshake message " + Arrays.toString(handshakeMessage) + " to peer "
-                    + getPeerIdFromSocket(peerSocket));
-    
-            out.write(handshakeMessage);
-            out.flush();
-    
-            byte[] response = new byte[32];
-    
-            // Manually read bytes from the input stream
-            in.read(response);
-            // Log the received handshake response
-            Logger.info("Received handshake response: " + Arrays.toString(response) + " from peer "
-                    + getPeerIdFromSocket(peerSocket));
-    
-            int remotePeerID = ByteBuffer.wrap(Arrays.copyOfRange(response, 28, 32)).getInt();
-            Logger.info("Extracted remote peer ID: " + remotePeerID);
-    
-            if (remotePeerID == getPeerIdFromSocket(peerSocket)) {
-                throw new IOException("Connected to self.");
-            }
-    
-            socketToPeerIdMap.put(peerSocket, remotePeerID);
-    
-            // Log connection
-            ConnectionEventLogger.peerConnected(getPeerIdFromSocket(peerSocket), remotePeerID);
-    
-            // Save remotePeerID as a field for future use
-            this.remotePeerID = remotePeerID;
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new P2PFileSharingException("Error during handshake",
-                    P2PFileSharingException.ErrorType.HANDSHAKE_ERROR, e);
+    /**
+     * Called by the transport once the handshake has completed. Advertises our pieces.
+     */
+    public void onConnected() throws P2PFileSharingException {
+        ConnectionEventLogger.peerConnected(localPeerID, remotePeerID);
+        peers.attach(slot, this);
+        metrics.peerConnected(peerMetrics);
+        byte[] bitfield = fileManager.getBitfieldMessage();
+        if (bitfield != null) {
+            send(bitfield);
         }
     }
-    
 
-    private void handleMessage(byte[] message) throws P2PFileSharingException {
+    /**
+     * Dispatches one received frame. The buffer holds the type byte at its position
+     * followed by the payload up to its limit; it is a view over the transport's
+     * receive buffer and only valid for the duration of the call.
+     *
+     * @param message the frame body, without the 4-byte length prefix
+     */
+    public void handleMessage(ByteBuffer message) throws P2PFileSharingException {
         try {
             char messageType = getMessageTypeFromMessage(message);
+            peerMetrics.messageReceived(messageType);
             switch (messageType) {
                 case '0':
                     handleChoke();
@@ -151,10 +124,13 @@ public class PeerHandler implements Runnable {
                     handleRequest(message);
                     break;
                 case '7': // piece
-                    handlePiece(message);
+                    handlePiece(MessageCodec.pieceIndex(message), copyPayload(message));
+                    break;
+                case '8': // cancel
+                    handleCancel(message);
                     break;
                 default:
-                    System.out.println("Unknown message type received: " + messageType);
+                    Logger.warn("Unknown message type received: %d", (int) messageType);
             }
         } catch (Exception e) {
             throw new P2PFileSharingException("Error handling message: " + e.getMessage(),
@@ -162,163 +138,322 @@ public class PeerHandler implements Runnable {
         }
     }
 
+    private void send(byte[] frame) throws P2PFileSharingException {
+        try {
+            connection.send(frame);
+            peerMetrics.messageSent(frame[4]);
+        } catch (IOException e) {
+            throw sendFailed(e);
+        }
+    }
+
+    private void sendMessage(byte type) throws P2PFileSharingException {
+        try {
+            connection.sendMessage(type);
+            peerMetrics.messageSent(type);
+        } catch (IOException e) {
+            throw sendFailed(e);
+        }
+    }
+
+    private void sendMessage(byte type, int pieceIndex) throws P2PFileSharingException {
+        try {
+            connection.sendMessage(type, pieceIndex);
+            peerMetrics.messageSent(type);
+        } catch (IOException e) {
+            throw sendFailed(e);
+        }
+    }
+
+    private P2PFileSharingException sendFailed(IOException e) {
+        return new P2PFileSharingException("Error sending message to peer " + remotePeerID + ": " + e.getMessage(),
+                P2PFileSharingException.ErrorType.CONNECTION_ERROR, e);
+    }
+
     private void handleChoke() {
         chokedByPeer = true;
-        PeerEventLogger.peerChoked(getPeerIdFromSocket(peerSocket), remotePeerID);
+        peerMetrics.chokeReceived();
+        PeerEventLogger.peerChoked(localPeerID, remotePeerID);
+        // A choking peer discards our pending requests; hand its pieces to the other neighbors
+        releaseAssignedPieces();
+    }
+
+    /**
+     * Returns this neighbor's pieces to the scheduler. chokedByPeer must already be set, so a
+     * refill racing with us either finishes first and is released too, or assigns nothing.
+     */
+    private void releaseAssignedPieces() {
+        int released;
+        requestLock.lock();
+        try {
+            pipeline.clear();
+            peerMetrics.setInFlightRequests(0);
+            released = scheduler.releaseAll(slot);
+        } finally {
+            requestLock.unlock();
+        }
+        if (released > 0) {
+            refillNeighbors();
+        }
+    }
+
+    private void refillNeighbors() {
+        for (int i = 0, slots = peers.getSlotCount(); i < slots; i++) {
+            PeerHandler neighbor = peers.get(i);
+            if (neighbor != null) {
+                neighbor.refillRequests();
+            }
+        }
+    }
+
+    /**
+     * Tops up this neighbor's requests after pieces were returned to the scheduler.
+     * Failures only affect this neighbor.
+     */
+    public void refillRequests() {
+        try {
+            requestNeededPieces();
+        } catch (P2PFileSharingException e) {
+            System.err.println("Error requesting pieces from peer " + remotePeerID + ": " + e.getMessage());
+        }
     }
 
     private void handleUnchoke() throws P2PFileSharingException {
         chokedByPeer = false;
-        PeerEventLogger.peerUnchoked(getPeerIdFromSocket(peerSocket), remotePeerID);
+        peerMetrics.unchokeReceived();
+        PeerEventLogger.peerUnchoked(localPeerID, remotePeerID);
         requestNeededPieces();
     }
 
+    /**
+     * Tops the request pipeline up to its window with pieces the scheduler assigns to this
+     * neighbor, so the link never sits idle waiting for the next request to go out.
+     */
     private void requestNeededPieces() throws P2PFileSharingException {
-        int peerId = getPeerIdFromSocket(peerSocket);
-        BitSet myBitfield = fileManager.getBitfield();
-        BitSet peerBitfield = pieceAvailability.get(peerId);
-
-        if (peerBitfield != null) {
-            for (int i = 0; i < peerBitfield.length(); i++) {
-                if (peerBitfield.get(i) && !myBitfield.get(i)) {
-                    requestPiece(i);
-                    break; // Break after requesting one piece to avoid flooding
+        if (chokedByPeer) {
+            return;
+        }
+        long now = System.nanoTime();
+        // In endgame only pieces that have been out longer than the median request are raced
+        long raceAfterNanos = scheduler.isEndgame()
+                ? TimeUnit.MICROSECONDS.toNanos(metrics.recentRequestLatencyP50Micros(now))
+                : Long.MAX_VALUE;
+        requestLock.lock();
+        try {
+            while (!chokedByPeer && pipeline.hasCapacity()) {
+                int pieceIndex = scheduler.assign(slot, peerHas, now, raceAfterNanos);
+                if (pieceIndex < 0) {
+                    break;
                 }
+                requestPiece(pieceIndex);
             }
+        } finally {
+            requestLock.unlock();
         }
     }
 
     private void requestPiece(int pieceIndex) throws P2PFileSharingException {
-        try {
-            byte[] requestMessage = createRequestMessage(pieceIndex);
-            out.write(requestMessage);
-            ConnectionEventLogger.dataRequestSent(getPeerIdFromSocket(peerSocket), remotePeerID, pieceIndex);
-        } catch (IOException e) {
-            throw new P2PFileSharingException("Error requesting piece: " + e.getMessage(),
-                    P2PFileSharingException.ErrorType.MESSAGE_ERROR, e);
+        pipeline.requestSent(pieceIndex, System.nanoTime());
+        peerMetrics.setInFlightRequests(pipeline.getOutstandingCount());
+        sendMessage(MessageCodec.REQUEST, pieceIndex);
+        ConnectionEventLogger.dataRequestSent(localPeerID, remotePeerID, pieceIndex);
+        if (scheduler.getRequesterCount(pieceIndex) > 1) {
+            metrics.endgameRequest();
         }
     }
 
-    private byte[] createRequestMessage(int pieceIndex) {
-        // Assuming the message format is: [message length (4 bytes)] + [message type (1
-        // byte)] + [piece index (4 bytes)]
-        ByteBuffer buffer = ByteBuffer.allocate(9);
-        buffer.putInt(5); // Length of the message (1 byte for type + 4 bytes for piece index)
-        buffer.put((byte) '6'); // Message type '6' for request
-        buffer.putInt(pieceIndex); // The requested piece index
-
-        return buffer.array();
+    /**
+     * Withdraws our request for a piece another neighbor delivered first in endgame, if it
+     * is still outstanding here, and uses the freed pipeline slot for another piece.
+     * Failures only affect this neighbor.
+     */
+    public void cancelRequest(int pieceIndex) {
+        try {
+            requestLock.lock();
+            try {
+                if (!pipeline.cancel(pieceIndex)) {
+                    return;
+                }
+                peerMetrics.setInFlightRequests(pipeline.getOutstandingCount());
+                sendMessage(MessageCodec.CANCEL, pieceIndex);
+            } finally {
+                requestLock.unlock();
+            }
+            requestNeededPieces();
+        } catch (P2PFileSharingException e) {
+            System.err.println("Error cancelling request to peer " + remotePeerID + ": " + e.getMessage());
+        }
     }
 
     private void handleInterested() {
-        int peerId = getPeerIdFromSocket(peerSocket);
-
-        // Assuming getInterestingPieces returns the indices of the pieces that
-        // this peer has and the other peer doesn't. This should be based on comparing
-        // the two bitfields: the current peer's and the other peer's.
-        Set<Integer> interestingPieces = getInterestingPieces(peerId);
-
-        // If there are interesting pieces, mark the peer as interested in those pieces.
-        if (!interestingPieces.isEmpty()) {
-            for (int pieceIndex : interestingPieces) {
-                interestManager.addInterestedPeer(peerId, pieceIndex);
-            }
-            System.out.println("Peer " + peerId + " is interested in pieces: " + interestingPieces);
-        } else {
-            // If there are no interesting pieces, handle as not interested.
-            handleNotInterested(); // can call this directly if no interesting pieces.
-        }
+        peerInterested = true;
+        PeerEventLogger.receivedInterestedMessage(localPeerID, remotePeerID);
     }
 
     private void handleNotInterested() {
-        int peerId = getPeerIdFromSocket(peerSocket);
-
-        // Remove all interest entries for this peer since they are not interested in
-        // any pieces.
-        interestManager.removeAllInterestedPieces(peerId);
-        System.out.println("Peer " + peerId + " is not interested in any more pieces.");
+        peerInterested = false;
+        PeerEventLogger.receivedNotInterestedMessage(localPeerID, remotePeerID);
     }
 
-    // This method will compare the bitfields of this peer and another peer
-    // to find out which pieces the other peer has that this peer doesn't.
-    private Set<Integer> getInterestingPieces(int peerId) {
+    private void handleHave(ByteBuffer message) throws P2PFileSharingException {
+        int pieceIndex = checkPieceIndex(MessageCodec.pieceIndex(message));
+        PeerEventLogger.receivedHaveMessage(localPeerID, remotePeerID, pieceIndex);
 
-        // Todo fix this string bs cause might get an error here
-        BitSet myBitfield = pieceAvailability.get(getPeerIdFromSocket(peerSocket)); // own bitfield
-        BitSet otherPeerBitfield = pieceAvailability.get(peerId); // The other peer's bitfield
-
-        Set<Integer> interestingPieces = new HashSet<>();
-        if (otherPeerBitfield != null) {
-            // Here we go through each bit in the other peer's bitfield.
-            for (int i = 0; i < myBitfield.length(); i++) {
-                // If the other peer has a piece that we don't, it's interesting to us.
-                if (otherPeerBitfield.get(i) && !myBitfield.get(i)) {
-                    interestingPieces.add(i);
-                }
+        requestLock.lock();
+        try {
+            if (!peerHas.get(pieceIndex)) {
+                peerHas.set(pieceIndex);
+                availability.addHave(pieceIndex);
             }
+        } finally {
+            requestLock.unlock();
         }
-        return interestingPieces;
-    }
 
-    private void handleHave(byte[] message) {
-        int pieceIndex = ByteBuffer.wrap(Arrays.copyOfRange(message, 1, 5)).getInt();
-        fileManager.updateHave(pieceIndex);
-
-        int remotePeerID = getPeerIdFromSocket(peerSocket);
-        BitSet peerBitfield = pieceAvailability.get(remotePeerID);
-        peerBitfield.set(pieceIndex);
-
-        Set<Integer> interestingPieces = getInterestingPieces(remotePeerID);
-        if (!interestingPieces.isEmpty()) {
-            sendInterestedMessage();
-        } else {
-            sendNotInterestedMessage();
+        boolean interested = interestManager.peerHas(slot, pieceIndex);
+        updateInterest();
+        if (interested) {
+            requestNeededPieces();
         }
     }
 
-    private void handleBitfield(byte[] messageBytes) {
+    private void handleBitfield(ByteBuffer messageBytes) throws P2PFileSharingException {
         BitSet receivedBitfield = message.parseBitfieldMessage(messageBytes);
 
-        // Update the piece availability for the remote peer
-        int remotePeerID = getPeerIdFromSocket(peerSocket);
-        pieceAvailability.put(remotePeerID, receivedBitfield);
+        requestLock.lock();
+        try {
+            availability.removePeer(peerHas);
+            peerHas.clear();
+            peerHas.or(receivedBitfield);
+            availability.addPeer(peerHas);
+        } finally {
+            requestLock.unlock();
+        }
 
-        // After updating the bitfield, check if interested
-        Set<Integer> interestingPieces = getInterestingPieces(remotePeerID);
-        if (!interestingPieces.isEmpty()) {
-            sendInterestedMessage();
-        } else {
-            sendNotInterestedMessage();
+        boolean interested = interestManager.peerBitfield(slot, receivedBitfield);
+        updateInterest();
+        if (interested) {
+            requestNeededPieces();
         }
     }
 
-    private void sendInterestedMessage() {
+    /**
+     * Tells the neighbor whether we want its pieces, if we have not said so yet or the answer
+     * changed since. Called after any InterestManager update that may concern this neighbor,
+     * from whichever thread made it; the answer is read under interestLock, so the last
+     * caller always sends the current one. Failures only affect this neighbor.
+     */
+    public void updateInterest() {
+        interestLock.lock();
         try {
-            out.write(new message('2').getMessage());
-        } catch (IOException e) {
-            System.err.println("Error sending interested message: " + e.getMessage());
+            boolean interested = interestManager.isInterestedIn(slot);
+            if (interestAnnounced && interested == interestedInPeer) {
+                return;
+            }
+            interestAnnounced = true;
+            interestedInPeer = interested;
+            sendMessage(interested ? MessageCodec.INTERESTED : MessageCodec.NOT_INTERESTED);
+        } catch (P2PFileSharingException e) {
+            System.err.println("Error sending interest to peer " + remotePeerID + ": " + e.getMessage());
+        } finally {
+            interestLock.unlock();
         }
     }
 
-    private void sendNotInterestedMessage() {
+    /**
+     * Announces a piece we have just completed. Failures only affect this neighbor.
+     */
+    public void sendHave(int pieceIndex) {
         try {
-            out.write(new message('3').getMessage());
+            connection.sendMessage(MessageCodec.HAVE, pieceIndex);
+            peerMetrics.messageSent(MessageCodec.HAVE);
         } catch (IOException e) {
-            System.err.println("Error sending not interested message: " + e.getMessage());
+            System.err.println("Error sending have message to peer " + remotePeerID + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The neighbor got the piece elsewhere. Requests are served as they arrive, so only an
+     * upload still waiting in the connection's queue can be dropped.
+     */
+    private void handleCancel(ByteBuffer message) throws P2PFileSharingException {
+        int pieceIndex = checkPieceIndex(MessageCodec.pieceIndex(message));
+        if (connection.cancelPiece(pieceIndex)) {
+            metrics.uploadCancelled();
+            Logger.debug("Dropped queued piece %d for peer %d after a cancel", pieceIndex, remotePeerID);
         }
     }
 
-    private void handleRequest(byte[] message) throws P2PFileSharingException {
+    private void handleRequest(ByteBuffer message) throws P2PFileSharingException {
         // Extract the requested piece index from the message
-        requestedPieceIndex = ByteBuffer.wrap(Arrays.copyOfRange(message, 1, 5)).getInt();
+        requestedPieceIndex = MessageCodec.pieceIndex(message);
         // Perform the rest of the request logic, potentially sending a piece back
         sendRequestedPiece();
     }
 
+    /**
+     * Marks whether we are choking this neighbor; requests from a choked neighbor are ignored.
+     */
+    public void setChokingPeer(boolean choking) {
+        this.chokingPeer = choking;
+    }
+
+    public boolean isChokingPeer() {
+        return chokingPeer;
+    }
+
+    /**
+     * @return whether the neighbor's last interested/not interested message said it wants our pieces
+     */
+    public boolean isPeerInterested() {
+        return peerInterested;
+    }
+
+    /**
+     * Stops serving this neighbor and tells it so. Does nothing if it is already choked.
+     *
+     * @return whether the neighbor was unchoked before
+     */
+    public boolean choke() {
+        return updateChoking(true, MessageCodec.CHOKE);
+    }
+
+    /**
+     * Starts serving this neighbor's requests and tells it so. Does nothing if it is already unchoked.
+     *
+     * @return whether the neighbor was choked before
+     */
+    public boolean unchoke() {
+        return updateChoking(false, MessageCodec.UNCHOKE);
+    }
+
+    private boolean updateChoking(boolean choking, byte messageType) {
+        if (chokingPeer == choking) {
+            return false;
+        }
+        chokingPeer = choking;
+        try {
+            sendMessage(messageType);
+        } catch (P2PFileSharingException e) {
+            System.err.println("Error sending choke state to peer " + remotePeerID + ": " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Closes the connection; the transport then calls cleanUpResources().
+     */
+    public void disconnect() {
+        connection.close();
+    }
+
     private void sendRequestedPiece() throws P2PFileSharingException {
-        if (!chokedByPeer) {
+        if (!chokingPeer) {
             try {
-                fileManager.sendPiece(requestedPieceIndex, out);
+                int sent = fileManager.sendPiece(requestedPieceIndex, connection);
+                if (sent > 0) {
+                    peerMetrics.messageSent(MessageCodec.PIECE);
+                    peerMetrics.pieceUploaded(sent);
+                }
             } catch (P2PFileSharingException e) {
 
                 System.err.println(
@@ -326,40 +461,176 @@ public class PeerHandler implements Runnable {
                 // Handle exception by logging or sending a different message
             }
         } else {
-            System.out.println("Cannot send piece " + requestedPieceIndex + " as we are choked by the peer.");
+            Logger.debug("Cannot send piece %d as we are choking the peer.", requestedPieceIndex);
         }
     }
 
-    private void handlePiece(byte[] message) throws P2PFileSharingException {
+    /**
+     * @return a buffer from the receive pool for a piece payload of the given length. The
+     *         transport fills it and passes it to handlePieceMessage, or releases it if the
+     *         connection closes first.
+     */
+    public ByteBuffer acquirePieceBuffer(int length) {
+        return fileManager.getReceiveBuffers().acquire(length);
+    }
+
+    public void releasePieceBuffer(ByteBuffer buffer) {
+        fileManager.getReceiveBuffers().release(buffer);
+    }
+
+    /**
+     * Handles a piece frame whose payload the transport read straight into a buffer from
+     * acquirePieceBuffer, flipped so the payload is its remaining bytes. The handler owns
+     * the buffer from here on and returns it to the pool once the piece is stored or dropped.
+     */
+    public void handlePieceMessage(int pieceIndex, ByteBuffer payload) throws P2PFileSharingException {
+        peerMetrics.messageReceived(MessageCodec.PIECE);
+        handlePiece(pieceIndex, payload);
+    }
+
+    // The frame view is only valid during handleMessage, so the payload moves to a pooled buffer
+    private ByteBuffer copyPayload(ByteBuffer message) {
+        int length = MessageCodec.payloadLength(message);
+        ByteBuffer payload = acquirePieceBuffer(length);
+        payload.put(0, message, MessageCodec.payloadOffset(message), length);
+        return payload;
+    }
+
+    private void handlePiece(int pieceIndex, ByteBuffer pieceData) throws P2PFileSharingException {
+        boolean handedOff = false;
         try {
-            int pieceIndex = ByteBuffer.wrap(Arrays.copyOfRange(message, 1, 5)).getInt();
-            byte[] pieceData = Arrays.copyOfRange(message, 5, message.length);
-            fileManager.storePiece(pieceIndex, pieceData);
-            PeerEventLogger.pieceDownloaded(getPeerIdFromSocket(peerSocket), remotePeerID, pieceIndex,
-                    pieceData.length);
+            checkPieceIndex(pieceIndex);
+            int length = pieceData.remaining();
+            peerMetrics.pieceDownloaded(length);
+            long rttNanos;
+            requestLock.lock();
+            try {
+                rttNanos = pipeline.pieceArrived(pieceIndex, length, System.nanoTime());
+                peerMetrics.setInFlightRequests(pipeline.getOutstandingCount());
+            } finally {
+                requestLock.unlock();
+            }
+            if (rttNanos > 0) {
+                peerMetrics.requestCompleted(rttNanos);
+            }
+            // Hashing runs on the verification pool; the piece stays assigned to us until it is
+            // committed or rejected, so the freed pipeline slot can be refilled right away
+            CompletableFuture<Boolean> verified = fileManager.verifyPiece(pieceIndex, pieceData);
+            handedOff = true;
+            verified.whenComplete((valid, error) -> {
+                try {
+                    if (error == null && valid) {
+                        commitPiece(pieceIndex, pieceData);
+                    } else {
+                        rejectPiece(pieceIndex);
+                    }
+                } finally {
+                    // The store has copied what it keeps; the buffer can take the next piece
+                    releasePieceBuffer(pieceData);
+                }
+            });
+            requestNeededPieces();
         } catch (Exception e) {
+            if (!handedOff) {
+                releasePieceBuffer(pieceData);
+            }
             throw new P2PFileSharingException("Error handling piece message: " + e.getMessage(),
                     P2PFileSharingException.ErrorType.FILE_ERROR, e);
         }
     }
 
+    private void commitPiece(int pieceIndex, ByteBuffer pieceData) {
+        try {
+            int length = pieceData.remaining();
+            boolean added = fileManager.storePiece(pieceIndex, pieceData);
+            long now = System.nanoTime();
+            // The other neighbors still sending this piece, e.g. endgame racers, are told to stop
+            for (int racing : scheduler.complete(slot, pieceIndex, now)) {
+                PeerHandler neighbor = peers.get(racing);
+                if (neighbor != null) {
+                    neighbor.cancelRequest(pieceIndex);
+                }
+            }
+            if (added) {
+                PeerEventLogger.pieceDownloaded(localPeerID, remotePeerID, pieceIndex,
+                        fileManager.getNumPiecesHave());
+                // The piece is already servable on every connection; tell the neighbors
+                for (int i = 0, slots = peers.getSlotCount(); i < slots; i++) {
+                    PeerHandler neighbor = peers.get(i);
+                    if (neighbor != null) {
+                        neighbor.sendHave(pieceIndex);
+                    }
+                }
+                // Only the neighbors that had this piece can have run out of pieces for us
+                for (int lostSlot : interestManager.pieceCompleted(pieceIndex)) {
+                    PeerHandler neighbor = peers.get(lostSlot);
+                    if (neighbor != null) {
+                        neighbor.updateInterest();
+                    }
+                }
+            } else {
+                long savedNanos = scheduler.duplicateArrived(slot, pieceIndex, now);
+                if (savedNanos >= 0) {
+                    metrics.endgameDuplicate(length, savedNanos);
+                }
+            }
+        } catch (P2PFileSharingException e) {
+            PeerEventLogger.logPeerCommunicationError(localPeerID, e);
+            scheduler.release(slot, pieceIndex);
+            refillNeighbors();
+        }
+    }
+
+    /**
+     * Drops a piece that failed verification, hands it back to the scheduler to be fetched
+     * again, and disconnects a neighbor that keeps sending corrupt data.
+     */
+    private void rejectPiece(int pieceIndex) {
+        PeerEventLogger.pieceRejected(localPeerID, remotePeerID, pieceIndex);
+        peerMetrics.pieceRejected();
+        scheduler.release(slot, pieceIndex);
+        if (hashFailures.incrementAndGet() >= MAX_HASH_FAILURES) {
+            ConnectionEventLogger.peerBlocked(localPeerID, remotePeerID);
+            connection.close();
+            return;
+        }
+        refillNeighbors();
+    }
+
+    /**
+     * @return the piece index, if it names a piece of the file
+     * @throws P2PFileSharingException if it does not; the transport then closes the connection
+     */
+    private int checkPieceIndex(int pieceIndex) throws P2PFileSharingException {
+        if (pieceIndex < 0 || pieceIndex >= fileManager.getNumPieces()) {
+            throw new P2PFileSharingException("Peer " + remotePeerID + " sent piece index " + pieceIndex
+                    + " outside 0.." + (fileManager.getNumPieces() - 1), P2PFileSharingException.ErrorType.MESSAGE_ERROR);
+        }
+        return pieceIndex;
+    }
+
     // Helper methods to extract message type and other information from the message
-    public char getMessageTypeFromMessage(byte[] message) {
-        return (char) message[0]; // Assuming message type is the first byte
+    public char getMessageTypeFromMessage(ByteBuffer message) {
+        return (char) MessageCodec.type(message);
     }
 
-    private void cleanUpResources() {
+    /**
+     * Called by the transport after the connection has been closed.
+     */
+    public void cleanUpResources() {
+        peers.detach(slot, this);
+        requestLock.lock();
         try {
-            if (in != null)
-                in.close();
-            if (out != null)
-                out.close();
-            if (peerSocket != null)
-                peerSocket.close();
-        } catch (IOException e) {
-            System.err.println("Error closing resources: " + e.getMessage());
-            // Optionally, you might want to log this error as well
+            availability.removePeer(peerHas);
+            peerHas.clear();
+        } finally {
+            requestLock.unlock();
         }
+        chokedByPeer = true;
+        releaseAssignedPieces();
+        interestManager.removePeer(slot);
+        metrics.peerDisconnected(peerMetrics);
+        ConnectionEventLogger.peerDisconnected(localPeerID, remotePeerID);
     }
 
 }
@@ -0,0 +1,198 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one neighbor, owned by the MetricsRegistry and cached by that
+ * neighbor's PeerHandler. Every record method is a single LongAdder or atomic
+ * array update, so the network threads never take a lock to record; readers
+ * (JMX, the snapshot writer) sum the counters on their own thread.
+ */
+public class PeerMetrics implements PeerMetricsMXBean {
+    // Indexed by message type '0'..'8'
+    static final String[] MESSAGE_TYPES = { "choke", "unchoke", "interested", "not_interested", "have",
+            "bitfield", "request", "piece", "cancel" };
+
+    private final int neighborId;
+    private final LatencyHistogram processLatency;
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LongAdder bytesDownloaded = new LongAdder();
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final AtomicLongArray messagesReceived = new AtomicLongArray(MESSAGE_TYPES.length);
+    private final AtomicLongArray messagesSent = new AtomicLongArray(MESSAGE_TYPES.length);
+    private final LongAdder chokesReceived = new LongAdder();
+    private final LongAdder unchokesReceived = new LongAdder();
+    private final LongAdder chokesSent = new LongAdder();
+    private final LongAdder unchokesSent = new LongAdder();
+    private final LongAdder rejectedPieces = new LongAdder();
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+    private final AtomicBoolean connected = new AtomicBoolean();
+
+    /**
+     * @param processLatency the registry's process-wide histogram, fed alongside this neighbor's own
+     */
+    PeerMetrics(int neighborId, LatencyHistogram processLatency) {
+        this.neighborId = neighborId;
+        this.processLatency = processLatency;
+    }
+
+    public void messageReceived(int type) {
+        int index = type - '0';
+        if (index >= 0 && index < MESSAGE_TYPES.length) {
+            messagesReceived.incrementAndGet(index);
+        }
+    }
+
+    public void messageSent(int type) {
+        int index = type - '0';
+        if (index >= 0 && index < MESSAGE_TYPES.length) {
+            messagesSent.incrementAndGet(index);
+        }
+    }
+
+    public void pieceDownloaded(int bytes) {
+        bytesDownloaded.add(bytes);
+    }
+
+    public void pieceUploaded(int bytes) {
+        bytesUploaded.add(bytes);
+    }
+
+    public void chokeReceived() {
+        chokesReceived.increment();
+    }
+
+    public void unchokeReceived() {
+        unchokesReceived.increment();
+    }
+
+    public void chokeSent() {
+        chokesSent.increment();
+    }
+
+    public void unchokeSent() {
+        unchokesSent.increment();
+    }
+
+    public void pieceRejected() {
+        rejectedPieces.increment();
+    }
+
+    /**
+     * Records the time from sending a request to the requested piece arriving.
+     */
+    public void requestCompleted(long nanos) {
+        requestLatency.record(nanos);
+        processLatency.record(nanos);
+    }
+
+    public void setInFlightRequests(int count) {
+        inFlightRequests.set(count);
+    }
+
+    /**
+     * @return the previous state, so a connection is only counted once
+     */
+    boolean setConnected(boolean connected) {
+        return this.connected.getAndSet(connected);
+    }
+
+    private static Map<String, Long> byType(AtomicLongArray counts) {
+        Map<String, Long> byType = new LinkedHashMap<>();
+        for (int i = 0; i < MESSAGE_TYPES.length; i++) {
+            byType.put(MESSAGE_TYPES[i], counts.get(i));
+        }
+        return byType;
+    }
+
+    long getMessagesReceived(int index) {
+        return messagesReceived.get(index);
+    }
+
+    long getMessagesSent(int index) {
+        return messagesSent.get(index);
+    }
+
+    @Override
+    public int getNeighborId() {
+        return neighborId;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected.get();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return bytesUploaded.sum();
+    }
+
+    @Override
+    public Map<String, Long> getMessagesReceived() {
+        return byType(messagesReceived);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesSent() {
+        return byType(messagesSent);
+    }
+
+    @Override
+    public long getChokesReceived() {
+        return chokesReceived.sum();
+    }
+
+    @Override
+    public long getUnchokesReceived() {
+        return unchokesReceived.sum();
+    }
+
+    @Override
+    public long getChokesSent() {
+        return chokesSent.sum();
+    }
+
+    @Override
+    public long getUnchokesSent() {
+        return unchokesSent.sum();
+    }
+
+    @Override
+    public int getInFlightRequests() {
+        return inFlightRequests.get();
+    }
+
+    @Override
+    public long getRejectedPieces() {
+        return rejectedPieces.sum();
+    }
+
+    @Override
+    public long getRequestLatencyCount() {
+        return requestLatency.getCount();
+    }
+
+    @Override
+    public long getRequestLatencyMeanMicros() {
+        return requestLatency.getMeanMicros();
+    }
+
+    @Override
+    public long getRequestLatencyP50Micros() {
+        return requestLatency.getPercentileMicros(0.5);
+    }
+
+    @Override
+    public long getRequestLatencyP99Micros() {
+        return requestLatency.getPercentileMicros(0.99);
+    }
+}
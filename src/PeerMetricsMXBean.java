@@ -0,0 +1,39 @@
+import java.util.Map;
+
+/**
+ * JMX view of one neighbor's PeerMetrics, registered as
+ * "p2p:type=Neighbor,peer=&lt;local id&gt;,neighbor=&lt;remote id&gt;".
+ */
+public interface PeerMetricsMXBean {
+    int getNeighborId();
+
+    boolean isConnected();
+
+    long getBytesDownloaded();
+
+    long getBytesUploaded();
+
+    Map<String, Long> getMessagesReceived();
+
+    Map<String, Long> getMessagesSent();
+
+    long getChokesReceived();
+
+    long getUnchokesReceived();
+
+    long getChokesSent();
+
+    long getUnchokesSent();
+
+    int getInFlightRequests();
+
+    long getRejectedPieces();
+
+    long getRequestLatencyCount();
+
+    long getRequestLatencyMeanMicros();
+
+    long getRequestLatencyP50Micros();
+
+    long getRequestLatencyP99Micros();
+}
@@ -0,0 +1,96 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import errorhandling.P2PFileSharingException;
+
+/**
+ * Gives every neighbor a small, dense int slot at handshake and holds the live
+ * connection for each slot. A peer keeps its slot for the life of the process, so
+ * a reconnect lands where it was. The shared per-neighbor structures (the
+ * PieceScheduler's assignments, the InterestManager's indexes, chokeHandler's rates)
+ * are plain arrays indexed by slot, so hot paths never box, hash or parse a peer ID.
+ *
+ * Only handing out a slot takes a lock. Reads are lock-free: a slot's peer ID is
+ * written before getSlotCount() publishes it, and neighbors are attached and detached
+ * atomically.
+ *
+ * @param <N> the connection type: PeerHandler in a running peer
+ */
+public class PeerRegistry<N> {
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock; only consulted at handshake
+    private final Map<Integer, Integer> slotsByPeerId = new HashMap<>();
+    private final int[] peerIds;
+    private final AtomicReferenceArray<N> neighbors;
+    private volatile int slotCount;
+
+    /**
+     * @param capacity how many distinct peers may ever connect
+     */
+    public PeerRegistry(int capacity) {
+        this.peerIds = new int[capacity];
+        this.neighbors = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * @return the peer's slot, handing out the next free one the first time the peer is seen
+     * @throws P2PFileSharingException if every slot is taken by other peers
+     */
+    public int slotFor(int peerId) throws P2PFileSharingException {
+        lock.lock();
+        try {
+            Integer slot = slotsByPeerId.get(peerId);
+            if (slot != null) {
+                return slot;
+            }
+            int next = slotCount;
+            if (next == peerIds.length) {
+                throw new P2PFileSharingException("No slot left for peer " + peerId + "; " + next + " peers known",
+                        P2PFileSharingException.ErrorType.CONNECTION_ERROR);
+            }
+            peerIds[next] = peerId;
+            slotsByPeerId.put(peerId, next);
+            slotCount = next + 1;
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many slots have been handed out; every slot below this has a peer ID
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public int getCapacity() {
+        return peerIds.length;
+    }
+
+    public int getPeerId(int slot) {
+        return peerIds[slot];
+    }
+
+    /**
+     * @return the neighbor connected in the slot, or null
+     */
+    public N get(int slot) {
+        return neighbors.get(slot);
+    }
+
+    /**
+     * Makes the neighbor the slot's connection, replacing an older one.
+     */
+    public void attach(int slot, N neighbor) {
+        neighbors.set(slot, neighbor);
+    }
+
+    /**
+     * Empties the slot if the neighbor is still its connection.
+     */
+    public void detach(int slot, N neighbor) {
+        neighbors.compareAndSet(slot, neighbor, null);
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sidecar file next to the target file ("thefile.checkpoint") that records which
+ * pieces are safely on disk, so a restarted peer resumes instead of starting over.
+ *
+ * Layout: a 16-byte header (magic, file size, piece size, piece count) followed by
+ * the completed-piece bitfield, one bit per piece, high bit first as on the wire.
+ * The file is created whole under a temporary name and atomically renamed into
+ * place; after that, updates only rewrite the bitfield bytes that changed, so a
+ * crash can never leave a torn header. A piece's bit is only written after its
+ * data has been forced to disk, so the checkpoint never claims more than the file
+ * really holds; at worst a restart re-downloads the last few pieces.
+ */
+public class PieceCheckpoint {
+    public static final String SUFFIX = ".checkpoint";
+    private static final int MAGIC = 0x50325043; // "P2PC"
+    private static final int HEADER_LENGTH = 16;
+
+    private final Path path;
+    private final int fileSize;
+    private final int pieceSize;
+    private final int numPieces;
+    private final BitSet durable = new BitSet();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private BitSet stored = new BitSet();
+    private FileChannel channel;
+
+    public PieceCheckpoint(String fileName, int fileSize, int pieceSize, int numPieces) {
+        this.path = Path.of(fileName + SUFFIX);
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.numPieces = numPieces;
+    }
+
+    /**
+     * Reads the checkpoint left by a previous run and opens it for updates, creating a
+     * fresh one if there is none or it was written for a different file layout.
+     *
+     * @return the pieces recorded as complete
+     */
+    public BitSet open() throws IOException {
+        BitSet recorded = new BitSet(numPieces);
+        if (Files.exists(path)) {
+            ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (contents.remaining() == HEADER_LENGTH + bitfieldLength()
+                    && contents.getInt() == MAGIC
+                    && contents.getInt() == fileSize
+                    && contents.getInt() == pieceSize
+                    && contents.getInt() == numPieces) {
+                for (int i = 0; i < numPieces; i++) {
+                    if ((contents.get(HEADER_LENGTH + i / 8) & (0x80 >>> (i % 8))) != 0) {
+                        recorded.set(i);
+                    }
+                }
+            }
+        }
+        create(recorded);
+        durable.or(recorded);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return recorded;
+    }
+
+    private void create(BitSet recorded) throws IOException {
+        ByteBuffer contents = ByteBuffer.allocate(HEADER_LENGTH + bitfieldLength());
+        contents.putInt(MAGIC).putInt(fileSize).putInt(pieceSize).putInt(numPieces);
+        for (int i = recorded.nextSetBit(0); i >= 0; i = recorded.nextSetBit(i + 1)) {
+            int at = HEADER_LENGTH + i / 8;
+            contents.put(at, (byte) (contents.get(at) | (0x80 >>> (i % 8))));
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The bitfield bytes were put at absolute offsets, so the whole buffer is written
+            contents.rewind();
+            while (contents.hasRemaining()) {
+                out.write(contents);
+            }
+            out.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private int bitfieldLength() {
+        return (numPieces + 7) / 8;
+    }
+
+    /**
+     * Notes that a piece has been handed to the store. It is recorded on the next flush().
+     */
+    public synchronized void pieceStored(int index) {
+        stored.set(index);
+    }
+
+    /**
+     * Makes the store durable, then records every piece stored since the last flush.
+     * If either step fails, the batch is kept for the next flush to retry.
+     */
+    public void flush(PieceStore store) throws IOException {
+        flushLock.lock();
+        try {
+            BitSet batch;
+            synchronized (this) {
+                if (stored.isEmpty()) {
+                    return;
+                }
+                batch = stored;
+                stored = new BitSet();
+            }
+            try {
+                // Data first: a bit must never reach the disk before the piece it stands for
+                store.sync();
+                durable.or(batch);
+                int lastByte = -1;
+                for (int i = batch.nextSetBit(0); i >= 0; i = batch.nextSetBit(i + 1)) {
+                    if (i / 8 != lastByte) {
+                        lastByte = i / 8;
+                        writeBitfieldByte(lastByte);
+                    }
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    stored.or(batch);
+                }
+                throw e;
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void writeBitfieldByte(int byteIndex) throws IOException {
+        int value = 0;
+        for (int bit = 0; bit < 8; bit++) {
+            if (durable.get(byteIndex * 8 + bit)) {
+                value |= 0x80 >>> bit;
+            }
+        }
+        channel.write(ByteBuffer.wrap(new byte[] { (byte) value }), HEADER_LENGTH + byteIndex);
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SHA-256 digest of every piece, stored next to the target file
+ * ("thefile.manifest") and distributed alongside Common.cfg. Seeders generate it
+ * when they load the file; leechers use it to check each piece before committing
+ * it. Hashing a whole file is split into piece ranges across a ForkJoinPool.
+ *
+ * Layout: a 16-byte header (magic, file size, piece size, piece count) followed by
+ * one 32-byte digest per piece, in piece order.
+ */
+public class PieceManifest {
+    public static final String SUFFIX = ".manifest";
+    private static final String ALGORITHM = "SHA-256";
+    private static final int DIGEST_LENGTH = 32;
+    private static final int MAGIC = 0x50324d46; // "P2MF"
+    private static final int HEADER_LENGTH = 16;
+    // Pieces hashed by one fork-join leaf before it stops splitting
+    private static final int PIECES_PER_TASK = 8;
+
+    private final int fileSize;
+    private final int pieceSize;
+    private final byte[][] digests;
+
+    private PieceManifest(int fileSize, int pieceSize, byte[][] digests) {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.digests = digests;
+    }
+
+    /**
+     * Hashes every piece in the store in parallel.
+     */
+    public static PieceManifest generate(PieceStore store, int fileSize, int pieceSize, int numPieces,
+            ForkJoinPool pool) throws IOException {
+        byte[][] digests = new byte[numPieces][];
+        BitSet all = new BitSet(numPieces);
+        all.set(0, numPieces);
+        pool.invoke(new HashTask(store, all, 0, numPieces, (index, digest) -> digests[index] = digest));
+        checkFailures(digests, all);
+        return new PieceManifest(fileSize, pieceSize, digests);
+    }
+
+    /**
+     * @return the manifest at the given path, or null if there is none
+     * @throws IOException if it cannot be read or describes a different file layout
+     */
+    public static PieceManifest read(Path path, int fileSize, int pieceSize, int numPieces) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (contents.remaining() != HEADER_LENGTH + numPieces * DIGEST_LENGTH
+                || contents.getInt() != MAGIC
+                || contents.getInt() != fileSize
+                || contents.getInt() != pieceSize
+                || contents.getInt() != numPieces) {
+            throw new IOException("Manifest " + path + " does not match FileSize " + fileSize
+                    + " and PieceSize " + pieceSize);
+        }
+        byte[][] digests = new byte[numPieces][DIGEST_LENGTH];
+        for (byte[] digest : digests) {
+            contents.get(digest);
+        }
+        return new PieceManifest(fileSize, pieceSize, digests);
+    }
+
+    /**
+     * Writes the manifest under a temporary name and renames it into place.
+     */
+    public void write(Path path) throws IOException {
+        ByteBuffer contents = ByteBuffer.allocate(HEADER_LENGTH + digests.length * DIGEST_LENGTH);
+        contents.putInt(MAGIC).putInt(fileSize).putInt(pieceSize).putInt(digests.length);
+        for (byte[] digest : digests) {
+            contents.put(digest);
+        }
+        contents.flip();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (contents.hasRemaining()) {
+                out.write(contents);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return true if the bytes hash to the digest recorded for the piece
+     */
+    public boolean verify(int index, ByteBuffer data) {
+        return index >= 0 && index < digests.length && Arrays.equals(digests[index], digest(data));
+    }
+
+    /**
+     * Re-hashes the given pieces of the store in parallel.
+     *
+     * @return the pieces whose bytes do not match the manifest
+     */
+    public BitSet verifyAll(PieceStore store, BitSet pieces, ForkJoinPool pool) throws IOException {
+        byte[][] actual = new byte[digests.length][];
+        pool.invoke(new HashTask(store, pieces, 0, digests.length, (index, digest) -> actual[index] = digest));
+        checkFailures(actual, pieces);
+        BitSet bad = new BitSet();
+        for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1)) {
+            if (!Arrays.equals(digests[i], actual[i])) {
+                bad.set(i);
+            }
+        }
+        return bad;
+    }
+
+    private static void checkFailures(byte[][] digests, BitSet pieces) throws IOException {
+        for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1)) {
+            if (digests[i] == null) {
+                throw new IOException("Failed to read piece " + i + " for hashing");
+            }
+        }
+    }
+
+    private static byte[] digest(ByteBuffer data) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance(ALGORITHM);
+            sha.update(data.duplicate());
+            return sha.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private interface DigestSink {
+        void accept(int index, byte[] digest);
+    }
+
+    /**
+     * Hashes the selected pieces in [from, to), splitting the range in half until it is
+     * small enough for one task. A piece that cannot be read is left without a digest.
+     */
+    private static final class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // ForkJoinTask is Serializable, but these tasks never leave the process
+        private final transient PieceStore store;
+        private final BitSet pieces;
+        private final int from;
+        private final int to;
+        private final transient DigestSink sink;
+
+        HashTask(PieceStore store, BitSet pieces, int from, int to, DigestSink sink) {
+            this.store = store;
+            this.pieces = pieces;
+            this.from = from;
+            this.to = to;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PIECES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new HashTask(store, pieces, from, mid, sink), new HashTask(store, pieces, mid, to, sink));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                if (pieces.get(i)) {
+                    try {
+                        sink.accept(i, digest(store.read(i)));
+                    } catch (IOException e) {
+                        // Reported by the caller, which sees the missing digest
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Decides which connection downloads which piece. Until endgame every in-flight
+ * piece is assigned to exactly one neighbor, so two unchoked neighbors are never
+ * asked for the same piece. When a neighbor chokes us or disconnects, the pieces it had are
+ * released and go back to the pool for the other connections to pick up.
+ *
+ * Selection itself is rarest-first through the AvailabilityIndex, skipping
+ * pieces that are already assigned. Neighbors are named by their PeerRegistry
+ * slot. Shared by all PeerHandlers; every method holds the scheduler's monitor
+ * briefly and never does I/O.
+ *
+ * Endgame: once every piece we still miss is requested (the missing pieces are at
+ * or below the requests in flight), a single slow neighbor would hold up the end of
+ * the download. From then on a neighbor with nothing new to fetch and no request
+ * of its own outstanding is given a piece another neighbor is already downloading,
+ * rarest first, one at a time, so the last pieces are requested from every unchoked
+ * holder without any one neighbor queueing a window of copies. Only a piece whose latest
+ * request has been out for longer than the caller's threshold is raced, so pieces
+ * that are about to arrive anyway are not fetched twice. complete() returns the
+ * neighbors whose requests the first copy made redundant, for the caller to cancel.
+ */
+public class PieceScheduler {
+    private static final int[] NO_SLOTS = new int[0];
+
+    private final AvailabilityIndex availability;
+    private final boolean endgameEnabled;
+    // How many neighbors each piece is requested from; at most one before endgame
+    private final int[] requesters;
+    // The neighbor each piece was first assigned to, and when it was last assigned
+    private final int[] firstRequester;
+    private final long[] requestedAt;
+    // Raced pieces whose first copy has arrived, and when, to time the late copies
+    private final BitSet raced = new BitSet();
+    private final long[] firstCopyAt;
+    // Pieces assigned to each slot; grown as slots appear
+    private BitSet[] assignments = new BitSet[0];
+    private int missing;
+    private int inFlight;
+    private volatile boolean endgame;
+
+    public PieceScheduler(AvailabilityIndex availability, int numPieces) {
+        this(availability, numPieces, true);
+    }
+
+    /**
+     * @param endgame whether the last pieces may be requested from several neighbors at once
+     */
+    public PieceScheduler(AvailabilityIndex availability, int numPieces, boolean endgame) {
+        this.availability = availability;
+        this.endgameEnabled = endgame;
+        this.requesters = new int[numPieces];
+        this.firstRequester = new int[numPieces];
+        this.requestedAt = new long[numPieces];
+        this.firstCopyAt = new long[numPieces];
+        for (int i = 0; i < numPieces; i++) {
+            if (availability.getCount(i) >= 0) {
+                missing++;
+            }
+        }
+    }
+
+    public AvailabilityIndex getAvailability() {
+        return availability;
+    }
+
+    /**
+     * Assigns the rarest unassigned piece the given neighbor has to that neighbor. In
+     * endgame, if the neighbor has nothing else assigned, falls back to the rarest piece
+     * it has that others are downloading and that was last requested at least
+     * raceAfterNanos ago.
+     *
+     * @return the piece index to request, or -1 if there is nothing left to give it
+     */
+    public synchronized int assign(int slot, BitSet peerHas, long nowNanos, long raceAfterNanos) {
+        BitSet mine = assigned(slot);
+        int pieceIndex = availability.pickRarest(peerHas, i -> requesters[i] > 0);
+        if (pieceIndex < 0 && mine.isEmpty() && enterEndgame()) {
+            pieceIndex = availability.pickRarest(peerHas,
+                    i -> mine.get(i) || nowNanos - requestedAt[i] < raceAfterNanos);
+        }
+        if (pieceIndex >= 0) {
+            if (requesters[pieceIndex]++ == 0) {
+                firstRequester[pieceIndex] = slot;
+            }
+            requestedAt[pieceIndex] = nowNanos;
+            mine.set(pieceIndex);
+            inFlight++;
+        }
+        return pieceIndex;
+    }
+
+    private boolean enterEndgame() {
+        if (!endgame && endgameEnabled && missing > 0 && missing <= inFlight) {
+            endgame = true;
+        }
+        return endgame;
+    }
+
+    /**
+     * @return whether endgame has started. It starts once every missing piece is in flight
+     *         and lasts until the download is complete.
+     */
+    public boolean isEndgame() {
+        return endgame;
+    }
+
+    private BitSet assigned(int slot) {
+        if (slot >= assignments.length) {
+            assignments = Arrays.copyOf(assignments, Math.max(slot + 1, assignments.length * 2));
+        }
+        BitSet pieces = assignments[slot];
+        if (pieces == null) {
+            pieces = assignments[slot] = new BitSet();
+        }
+        return pieces;
+    }
+
+    /**
+     * Records that a piece has been stored, whichever neighbor it came from.
+     *
+     * @param slot the neighbor the stored copy came from
+     * @param nowNanos the arrival time, against which duplicateArrived() times late copies
+     * @return the other neighbors the piece is still requested from, whose requests can now
+     *         be cancelled: the other racers in endgame, or a neighbor whose request a copy from
+     *         elsewhere overtook; usually empty
+     */
+    public synchronized int[] complete(int slot, int pieceIndex, long nowNanos) {
+        if (availability.getCount(pieceIndex) >= 0) {
+            missing--;
+            availability.markOwned(pieceIndex);
+        }
+        int count = requesters[pieceIndex];
+        if (count == 0) {
+            return NO_SLOTS;
+        }
+        requesters[pieceIndex] = 0;
+        inFlight -= count;
+        if (count == 1 && firstRequester[pieceIndex] == slot && assignments[slot].get(pieceIndex)) {
+            assignments[slot].clear(pieceIndex);
+            return NO_SLOTS;
+        }
+        int[] others = new int[count];
+        int found = 0;
+        for (int s = 0, cleared = 0; s < assignments.length && cleared < count; s++) {
+            if (assignments[s] != null && assignments[s].get(pieceIndex)) {
+                assignments[s].clear(pieceIndex);
+                cleared++;
+                if (s != slot) {
+                    others[found++] = s;
+                }
+            }
+        }
+        if (count > 1) {
+            raced.set(pieceIndex);
+            firstCopyAt[pieceIndex] = nowNanos;
+        }
+        return found == count ? others : Arrays.copyOf(others, found);
+    }
+
+    /**
+     * Records a copy of a piece that arrived after the piece was stored.
+     *
+     * @return for a piece raced in endgame, how much later than the winning copy this copy
+     *         from the piece's first requester arrived: the time endgame saved. 0 for a late
+     *         copy from another requester, and -1 for a piece that was never raced
+     */
+    public synchronized long duplicateArrived(int slot, int pieceIndex, long nowNanos) {
+        if (!raced.get(pieceIndex)) {
+            return -1;
+        }
+        if (slot != firstRequester[pieceIndex]) {
+            return 0;
+        }
+        // Only the first requester's copy tells how long the piece would have taken
+        raced.clear(pieceIndex);
+        return Math.max(0, nowNanos - firstCopyAt[pieceIndex]);
+    }
+
+    /**
+     * Returns one piece to the pool if it is still assigned to the given neighbor, e.g. after
+     * the copy it sent failed verification.
+     */
+    public synchronized void release(int slot, int pieceIndex) {
+        if (slot < assignments.length && assignments[slot] != null && assignments[slot].get(pieceIndex)) {
+            assignments[slot].clear(pieceIndex);
+            requesters[pieceIndex]--;
+            inFlight--;
+        }
+    }
+
+    /**
+     * Returns every piece assigned to a neighbor to the pool, e.g. after it chokes us or drops.
+     *
+     * @return how many pieces were released
+     */
+    public synchronized int releaseAll(int slot) {
+        BitSet assigned = slot < assignments.length ? assignments[slot] : null;
+        if (assigned == null) {
+            return 0;
+        }
+        int released = 0;
+        for (int i = assigned.nextSetBit(0); i >= 0; i = assigned.nextSetBit(i + 1)) {
+            requesters[i]--;
+            released++;
+        }
+        inFlight -= released;
+        assigned.clear();
+        return released;
+    }
+
+    /**
+     * @return how many neighbors the piece is currently requested from
+     */
+    public synchronized int getRequesterCount(int pieceIndex) {
+        return requesters[pieceIndex];
+    }
+}
@@ -0,0 +1,39 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where FileManager keeps piece bytes. FileManager owns the bitfield and decides
+ * which store call wins for a given piece; a store only has to move bytes, and is
+ * never asked to read a piece before its write has been published.
+ */
+public interface PieceStore {
+
+    /**
+     * @return a read-only view of the piece, positioned at 0
+     */
+    ByteBuffer read(int index) throws IOException;
+
+    /**
+     * Stores the remaining bytes of data, a received piece, at its place in the file.
+     * The buffer's position is left alone and the caller reuses the buffer once this
+     * returns, so a store that keeps the bytes around must copy them.
+     */
+    void write(int index, ByteBuffer data) throws IOException;
+
+    /**
+     * Makes every piece written so far durable. Returns once they are on disk.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Called once, after the last missing piece has been written.
+     */
+    void complete() throws IOException;
+
+    /**
+     * @return the channel of the file that holds this piece at index * pieceSize, or null if
+     *         the piece is only on the heap. Lets uploads go out with FileChannel.transferTo.
+     */
+    FileChannel getFileChannel(int index);
+}
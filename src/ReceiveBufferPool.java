@@ -0,0 +1,58 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of piece-sized direct buffers that received piece payloads are read
+ * into. A buffer travels with its piece through verification and storage and comes
+ * back once the piece has been stored or dropped, so a steady download recycles the
+ * same few buffers instead of allocating a piece-sized array per message.
+ *
+ * When every pooled buffer is out, acquire() allocates a new one rather than waiting;
+ * release() keeps at most the bound and leaves the rest to the GC, so a burst of
+ * in-flight pieces never pins memory for the rest of the run. Every such allocation
+ * is counted in the MetricsRegistry as ReceiveBufferAllocations.
+ */
+public class ReceiveBufferPool {
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final MetricsRegistry metrics;
+
+    /**
+     * @param bufferSize the piece size; every pooled buffer has exactly this capacity
+     * @param maxPooled  how many released buffers are kept for reuse
+     * @param metrics    where allocations are counted
+     */
+    public ReceiveBufferPool(int bufferSize, int maxPooled, MetricsRegistry metrics) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return a buffer positioned at 0 with length bytes remaining. Its previous contents
+     *         are not cleared. Hand it back with release() once its bytes are no longer needed.
+     */
+    public ByteBuffer acquire(int length) {
+        if (length > bufferSize) {
+            // Never happens with a valid peer; release() drops the odd size again
+            metrics.receiveBufferAllocated();
+            return ByteBuffer.allocateDirect(length);
+        }
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            metrics.receiveBufferAllocated();
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer from acquire(). The caller must not touch it afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+}
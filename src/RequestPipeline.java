@@ -0,0 +1,135 @@
+import java.util.Arrays;
+
+/**
+ * Tracks the piece requests one connection has in flight and how many it may have.
+ * With a fixed depth the window is simply that number ("PipelineDepth N"). In
+ * adaptive mode ("PipelineDepth auto") the window follows the measured
+ * bandwidth-delay product: the smoothed piece delivery rate times the smallest
+ * request-to-piece round trip seen, in pieces, plus one so the link does not go
+ * idle while the next request is on its way.
+ *
+ * The outstanding requests are two parallel arrays, piece index and send time, sized to
+ * the largest window, so tracking a request boxes nothing. A window holds at most a few
+ * dozen requests, so finding one is a short linear scan.
+ *
+ * Guarded by the owning PeerHandler's request lock.
+ */
+public class RequestPipeline {
+    private static final int INITIAL_ADAPTIVE_DEPTH = 4;
+    private static final int MAX_ADAPTIVE_DEPTH = 64;
+    private static final double RATE_GAIN = 0.125;
+
+    private final int fixedDepth;
+    private final int pieceSize;
+    // The first count entries are the outstanding requests, in no particular order
+    private int[] pieces;
+    private long[] sentAt;
+    private int count;
+    private long minRttNanos = Long.MAX_VALUE;
+    private double bytesPerNano;
+    private long lastArrivalNanos;
+
+    /**
+     * @param depth the number of requests to keep in flight, or 0 to size the window adaptively
+     * @param pieceSize the configured piece size, used to turn the bandwidth-delay product into pieces
+     */
+    public RequestPipeline(int depth, int pieceSize) {
+        this.fixedDepth = depth;
+        this.pieceSize = pieceSize;
+        int capacity = depth > 0 ? depth : MAX_ADAPTIVE_DEPTH;
+        this.pieces = new int[capacity];
+        this.sentAt = new long[capacity];
+    }
+
+    public boolean hasCapacity() {
+        return count < getWindow();
+    }
+
+    public int getOutstandingCount() {
+        return count;
+    }
+
+    public void requestSent(int pieceIndex, long nowNanos) {
+        int i = indexOf(pieceIndex);
+        if (i < 0) {
+            if (count == pieces.length) {
+                pieces = Arrays.copyOf(pieces, count * 2);
+                sentAt = Arrays.copyOf(sentAt, count * 2);
+            }
+            i = count++;
+            pieces[i] = pieceIndex;
+        }
+        sentAt[i] = nowNanos;
+    }
+
+    /**
+     * Records a piece arrival and updates the round-trip and delivery-rate estimates.
+     *
+     * @return the time since the piece was requested on this connection, or -1 if it was not
+     */
+    public long pieceArrived(int pieceIndex, int bytes, long nowNanos) {
+        int i = indexOf(pieceIndex);
+        long rttNanos = i >= 0 ? Math.max(1, nowNanos - sentAt[i]) : -1;
+        if (i >= 0) {
+            remove(i);
+        }
+        if (rttNanos > 0) {
+            minRttNanos = Math.min(minRttNanos, rttNanos);
+        }
+        if (lastArrivalNanos != 0 && nowNanos > lastArrivalNanos) {
+            double sample = (double) bytes / (nowNanos - lastArrivalNanos);
+            bytesPerNano = bytesPerNano == 0 ? sample : bytesPerNano + RATE_GAIN * (sample - bytesPerNano);
+        }
+        lastArrivalNanos = nowNanos;
+        return rttNanos;
+    }
+
+    /**
+     * Forgets one outstanding request, e.g. because another neighbor delivered the piece first.
+     *
+     * @return whether the piece was still outstanding
+     */
+    public boolean cancel(int pieceIndex) {
+        int i = indexOf(pieceIndex);
+        if (i < 0) {
+            return false;
+        }
+        remove(i);
+        return true;
+    }
+
+    /**
+     * Forgets every outstanding request, e.g. after the peer chokes us and drops them.
+     */
+    public void clear() {
+        count = 0;
+        lastArrivalNanos = 0;
+    }
+
+    public int getWindow() {
+        if (fixedDepth > 0) {
+            return fixedDepth;
+        }
+        if (bytesPerNano == 0 || minRttNanos == Long.MAX_VALUE) {
+            return INITIAL_ADAPTIVE_DEPTH;
+        }
+        long bdpPieces = (long) Math.ceil(bytesPerNano * minRttNanos / pieceSize);
+        return (int) Math.max(2, Math.min(MAX_ADAPTIVE_DEPTH, bdpPieces + 1));
+    }
+
+    private int indexOf(int pieceIndex) {
+        for (int i = 0; i < count; i++) {
+            if (pieces[i] == pieceIndex) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Order does not matter: move the last request into the gap
+    private void remove(int i) {
+        count--;
+        pieces[i] = pieces[count];
+        sentAt[i] = sentAt[count];
+    }
+}
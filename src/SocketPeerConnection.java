@@ -0,0 +1,246 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+import logging.PeerEventLogger;
+import errorhandling.P2PFileSharingException;
+
+/**
+ * Blocking, thread-per-connection transport. run() loops on readInt/readFully
+ * and hands every frame to the PeerHandler as a view over one reusable read
+ * buffer. Outgoing frames are encoded into one output buffer. The replies the reader
+ * thread sends while handling one frame (a refill of several requests, say) are held
+ * back and go out in one write when the frame is done; every other send, and any send
+ * from another thread, is written before it returns. So nothing waits on the next
+ * read, however busy the remote keeps the socket.
+ * Used by the "threads" and "virtual" TransportModes; the only difference between
+ * them is which executor runs run().
+ */
+public class SocketPeerConnection implements PeerConnection, Runnable {
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final int maxFrameLength;
+    private final DataInputStream in;
+    private final OutputStream out;
+    // A ReentrantLock rather than synchronized, so a virtual thread blocked in a
+    // write can unmount from its carrier instead of pinning it
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Guarded by writeLock: frames not yet written, from 0 to outView's position
+    private final byte[] outBuffer = new byte[OUTPUT_BUFFER_SIZE];
+    private final ByteBuffer outView = ByteBuffer.wrap(outBuffer);
+    // The thread running run(); its sends are batched while inFrame
+    private volatile Thread readerThread;
+    // Reader thread only: set while handling a frame, and once it has held back a send
+    private boolean inFrame;
+    private boolean batched;
+    private PeerHandler handler;
+    private byte[] readBuffer = new byte[1024];
+    private ByteBuffer readView = ByteBuffer.wrap(readBuffer);
+
+    /**
+     * @param maxFrameLength largest frame body we accept before dropping the connection
+     */
+    public SocketPeerConnection(Socket socket, int maxFrameLength) throws IOException {
+        this.socket = socket;
+        this.maxFrameLength = maxFrameLength;
+        // Buffered so reading a frame's length prefix and body is one read from the socket, not five
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), INPUT_BUFFER_SIZE));
+        this.out = socket.getOutputStream();
+    }
+
+    public void setHandler(PeerHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+        try {
+            readerThread = Thread.currentThread();
+            handler.onConnected();
+            while (!socket.isClosed()) {
+                int length = in.readInt();
+                if (length < 0 || length > maxFrameLength) {
+                    throw new P2PFileSharingException("Invalid frame length: " + length,
+                            P2PFileSharingException.ErrorType.MESSAGE_ERROR);
+                }
+                if (length > 0) {
+                    if (length > readBuffer.length) {
+                        readBuffer = new byte[length];
+                        readView = ByteBuffer.wrap(readBuffer);
+                    }
+                    in.readFully(readBuffer, 0, length);
+                    readView.limit(length).position(0);
+                    inFrame = true;
+                    try {
+                        handler.handleMessage(readView);
+                    } finally {
+                        inFrame = false;
+                    }
+                    if (batched) {
+                        endBatch();
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            // Remote side closed the connection
+        } catch (IOException | P2PFileSharingException e) {
+            if (!socket.isClosed()) {
+                System.err.println("Error in PeerHandler: " + e.getMessage());
+                PeerEventLogger.logPeerCommunicationError(handler.getLocalPeerID(), e);
+            }
+        } finally {
+            close();
+            handler.cleanUpResources();
+        }
+    }
+
+    // Writes the replies held back while handling a frame, unless another send already has
+    private void endBatch() throws IOException {
+        batched = false;
+        writeLock.lock();
+        try {
+            drain();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void send(byte[] frame) throws IOException {
+        writeLock.lock();
+        try {
+            if (frame.length > outBuffer.length) {
+                drain();
+                out.write(frame);
+            } else {
+                reserve(frame.length).put(frame);
+            }
+            finishSend();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void sendMessage(byte type) throws IOException {
+        writeLock.lock();
+        try {
+            MessageCodec.encodeControl(reserve(MessageCodec.CONTROL_FRAME_LENGTH), type);
+            finishSend();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void sendMessage(byte type, int pieceIndex) throws IOException {
+        writeLock.lock();
+        try {
+            MessageCodec.encodeIndexed(reserve(MessageCodec.INDEXED_FRAME_LENGTH), type, pieceIndex);
+            finishSend();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Piece views are read-only, so the payload is copied into the output buffer behind
+     * its header and goes out in buffer-sized writes.
+     */
+    @Override
+    public void sendPiece(int pieceIndex, ByteBuffer payload) throws IOException {
+        writeLock.lock();
+        try {
+            MessageCodec.encodePieceHeader(reserve(MessageCodec.PIECE_HEADER_LENGTH), pieceIndex, payload.remaining());
+            while (payload.hasRemaining()) {
+                if (!outView.hasRemaining()) {
+                    drain();
+                }
+                int chunk = Math.min(outView.remaining(), payload.remaining());
+                payload.get(outBuffer, outView.position(), chunk);
+                outView.position(outView.position() + chunk);
+            }
+            finishSend();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * A plain Socket has no SocketChannel, so transferTo is not available here; the region
+     * is read into the output buffer behind its header instead.
+     */
+    @Override
+    public void sendFileRegion(int pieceIndex, FileChannel file, long position, int length) throws IOException {
+        writeLock.lock();
+        try {
+            MessageCodec.encodePieceHeader(reserve(MessageCodec.PIECE_HEADER_LENGTH), pieceIndex, length);
+            long end = position + length;
+            while (position < end) {
+                if (!outView.hasRemaining()) {
+                    drain();
+                }
+                outView.limit(outView.position() + (int) Math.min(outView.remaining(), end - position));
+                int read = file.read(outView, position);
+                outView.limit(outView.capacity());
+                if (read < 0) {
+                    throw new EOFException("Piece " + pieceIndex + " extends past the end of the file");
+                }
+                position += read;
+            }
+            finishSend();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the output buffer, with room for the given number of bytes at its position
+     */
+    private ByteBuffer reserve(int bytes) throws IOException {
+        if (outView.remaining() < bytes) {
+            drain();
+        }
+        return outView;
+    }
+
+    private void finishSend() throws IOException {
+        if (Thread.currentThread() == readerThread && inFrame) {
+            batched = true;
+        } else {
+            drain();
+        }
+    }
+
+    /**
+     * Pieces are copied into the output buffer as they are sent, so there is never a queued
+     * one left to drop.
+     */
+    @Override
+    public boolean cancelPiece(int pieceIndex) {
+        return false;
+    }
+
+    private void drain() throws IOException {
+        if (outView.position() > 0) {
+            out.write(outBuffer, 0, outView.position());
+            outView.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing resources: " + e.getMessage());
+        }
+    }
+}
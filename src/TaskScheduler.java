@@ -0,0 +1,25 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers and a time source for logic that runs in rounds, such as choking.
+ * peerProcess uses an ExecutorTaskScheduler on the real clock; a simulator can
+ * supply one that advances a virtual clock instead, so hours of rounds run in
+ * moments and repeat exactly.
+ */
+public interface TaskScheduler {
+
+    /**
+     * @return the current time in nanoseconds, only meaningful relative to other calls
+     */
+    long nanoTime();
+
+    /**
+     * Runs the task after initialDelay and then every period, until shutdown().
+     */
+    void scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit);
+
+    /**
+     * Cancels every task scheduled through this scheduler.
+     */
+    void shutdown();
+}
@@ -1,35 +1,78 @@
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-import logging.ConnectionEventLogger;
+import java.util.function.BooleanSupplier;
 import logging.PeerEventLogger;
 
+/**
+ * Runs the two choking timers over the neighbors we are connected to. Every
+ * UnchokingInterval the interested neighbors with the highest download rate
+ * become the preferred neighbors and are unchoked, and every other neighbor is
+ * choked; every OptimisticUnchokingInterval one random choked but interested
+ * neighbor is unchoked as well. Once we have the whole file nobody uploads to us,
+ * so the preferred neighbors are picked at random among the interested ones.
+ *
+ * A neighbor's rate is an exponentially weighted moving average of the piece bytes
+ * it sent us each round (counted by PeerHandler.handlePiece in its PeerMetrics),
+ * with a time constant of RATE_TIME_CONSTANT_ROUNDS rounds, so one slow round does not
+ * drop a good uploader. A neighbor that sent nothing at all in the last round has
+ * stopped reciprocating (it is choking us) and competes only as a random pick.
+ * Choke state changes are sent to the neighbor through its Neighbor, which is a
+ * PeerHandler in a running peer. Neighbors are walked by PeerRegistry slot, and the
+ * rates and the preferred set are kept per slot.
+ *
+ * The TaskScheduler must run both timers on one thread, as ExecutorTaskScheduler
+ * does, so choke state only ever changes from that thread.
+ */
 public class chokeHandler {
-    private List<String> unchoked;
-    private List<String> interestedNeighbors;
+    // How many unchoking intervals the rate average mostly reflects
+    private static final double RATE_TIME_CONSTANT_ROUNDS = 2.0;
+
+    // Slots of the preferred neighbors
+    private final BitSet preferred = new BitSet();
+    // Indexed by slot; null while the slot has no neighbor
+    private final NeighborRate[] rates;
+    // Scratch list of the optimistic unchoke candidates' slots
+    private final int[] candidates;
+    // Orders candidates by rate, then by a per-round random draw; the weakest is at the head
+    private final PriorityQueue<NeighborRate> fastest = new PriorityQueue<>(
+            Comparator.comparingDouble((NeighborRate rate) -> rate.score)
+                    .thenComparingInt(rate -> rate.tieBreak));
+    private final Random random;
+    private long lastRoundNanos = -1;
+    private int optimisticSlot = -1;
 
     private final int unchokingInterval;
     private final int optUnchokingInterval;
     private final int numPreferred;
 
-    private final HashMap<String, peerInfo> allPeerInfo;
-    private final InterestManager interestManager;
-
-    public chokeHandler(int unchokingInterval, int optUnchokingInterval, int numPreferred, HashMap<String, peerInfo> allPeerInfo, InterestManager interestManager) {
-        this.unchoked = new ArrayList<>();
-        this.interestedNeighbors = new ArrayList<>();
+    private final int localPeerID;
+    private final PeerRegistry<? extends Neighbor> peers;
+    private final BooleanSupplier seeding;
+    private final TaskScheduler scheduler;
+    private final MetricsRegistry metrics;
+
+    /**
+     * @param seeding   whether we have the whole file
+     * @param scheduler runs the choking rounds
+     * @param random    picks among equally fast neighbors and the optimistic neighbor
+     */
+    public chokeHandler(int unchokingInterval, int optUnchokingInterval, int numPreferred, int localPeerID,
+            PeerRegistry<? extends Neighbor> peers, BooleanSupplier seeding, TaskScheduler scheduler,
+            MetricsRegistry metrics, Random random) {
         this.unchokingInterval = unchokingInterval;
         this.optUnchokingInterval = optUnchokingInterval;
         this.numPreferred = numPreferred;
-        this.allPeerInfo = allPeerInfo;
-        this.interestManager = interestManager;
+        this.localPeerID = localPeerID;
+        this.peers = peers;
+        this.rates = new NeighborRate[peers.getCapacity()];
+        this.candidates = new int[peers.getCapacity()];
+        this.seeding = seeding;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.random = random;
     }
 
     public void start() {
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
-
         // Regular unchoking
         Runnable cncRunnable = this::chokeUnchoke;
         scheduler.scheduleAtFixedRate(cncRunnable, 0, unchokingInterval, TimeUnit.SECONDS);
@@ -39,70 +82,131 @@ public class chokeHandler {
         scheduler.scheduleAtFixedRate(optRunnable, 0, optUnchokingInterval, TimeUnit.SECONDS);
     }
 
+    public void stop() {
+        scheduler.shutdown();
+    }
+
     private void chokeUnchoke() {
-        // Iterate through all peers
-        for (Map.Entry<String, peerInfo> entry : allPeerInfo.entrySet()) {
-            String peerId = entry.getKey();
-            peerInfo peer = entry.getValue();
-
-            // Get interested peers for this peer
-            Set<Integer> interestedPeers = interestManager.getPeersInterestedIn(Integer.parseInt(peerId));
-            interestedNeighbors = interestedPeers.stream()
-                                                 .map(Object::toString)
-                                                 .collect(Collectors.toList());
-
-            // Sort interested neighbors based on download speed
-            interestedNeighbors.sort(Comparator.comparing(pId -> allPeerInfo.get(pId).getDownloadSpeed()).reversed());
-
-            // Pick top 'numPreferred' neighbors
-            List<String> preferredNeighbors = new ArrayList<>();
-            if (interestedNeighbors.size() > numPreferred) {
-                preferredNeighbors.addAll(interestedNeighbors.subList(0, numPreferred));
-            } else {
-                preferredNeighbors.addAll(interestedNeighbors);
+        long now = scheduler.nanoTime();
+        double elapsedSeconds = lastRoundNanos < 0 ? unchokingInterval : (now - lastRoundNanos) / 1e9;
+        lastRoundNanos = now;
+        // Weight of this round's sample; a late round counts for more
+        double weight = 1 - Math.exp(-elapsedSeconds / (RATE_TIME_CONSTANT_ROUNDS * unchokingInterval));
+        boolean randomOnly = seeding.getAsBoolean();
+
+        for (int slot = 0, slots = peers.getSlotCount(); slot < slots; slot++) {
+            Neighbor neighbor = peers.get(slot);
+            if (neighbor == null) {
+                rates[slot] = null;
+                continue;
             }
+            NeighborRate rate = rateOf(slot, neighbor);
+            long total = rate.peerMetrics.getBytesDownloaded();
+            boolean snubbed = total == rate.bytesAtLastRound;
+            if (elapsedSeconds > 0) {
+                double sample = (total - rate.bytesAtLastRound) / elapsedSeconds;
+                rate.bytesPerSecond += weight * (sample - rate.bytesPerSecond);
+            }
+            rate.bytesAtLastRound = total;
+            if (!neighbor.isPeerInterested()) {
+                continue;
+            }
+            // A neighbor that sent nothing this round ranks with the ones that never did, however
+            // fast it used to be. Neighbors with equal scores (every one of them, when seeding)
+            // are picked at random, which keeps trying new partners for the spare slots.
+            rate.score = randomOnly || snubbed ? 0 : rate.bytesPerSecond;
+            rate.tieBreak = random.nextInt();
+            // Keep only the numPreferred fastest: O(n log k) instead of sorting everyone
+            if (fastest.size() < numPreferred) {
+                fastest.add(rate);
+            } else if (numPreferred > 0 && fastest.comparator().compare(rate, fastest.peek()) > 0) {
+                fastest.poll();
+                fastest.add(rate);
+            }
+        }
 
-            // Log preferred neighbors
-            PeerEventLogger.preferredNeighborsChanged(Integer.parseInt(peerId), String.join(",", preferredNeighbors));
-
-            // Unchoke preferred neighbors and choke others
-            updateChokingStatus(peerId, preferredNeighbors);
+        preferred.clear();
+        while (!fastest.isEmpty()) {
+            preferred.set(fastest.poll().slot);
         }
-    }
+        metrics.preferredNeighborsUpdated();
+        StringBuilder ids = new StringBuilder();
+        for (int slot = preferred.nextSetBit(0); slot >= 0; slot = preferred.nextSetBit(slot + 1)) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(peers.getPeerId(slot));
+        }
+        PeerEventLogger.preferredNeighborsChanged(localPeerID, ids.toString());
 
-    private void updateChokingStatus(String peerId, List<String> preferredNeighbors) {
-        for (String neighbor : interestedNeighbors) {
-            peerInfo neighborInfo = allPeerInfo.get(neighbor);
+        // Unchoke preferred neighbors and choke others
+        updateChokingStatus();
+    }
 
-            if (preferredNeighbors.contains(neighbor)) {
-                if (!unchoked.contains(neighbor)) {
-                    neighborInfo.unchoke();
-                    unchoked.add(neighbor);
-                    PeerEventLogger.peerUnchoked(Integer.parseInt(peerId), Integer.parseInt(neighbor));
-                }
-            } else {
-                if (unchoked.contains(neighbor)) {
-                    neighborInfo.choke();
-                    unchoked.remove(neighbor);
-                    PeerEventLogger.peerChoked(Integer.parseInt(peerId), Integer.parseInt(neighbor));
+    private void updateChokingStatus() {
+        for (int slot = 0, slots = peers.getSlotCount(); slot < slots; slot++) {
+            Neighbor neighbor = peers.get(slot);
+            if (neighbor == null) {
+                continue;
+            }
+            if (preferred.get(slot) || slot == optimisticSlot) {
+                if (neighbor.unchoke()) {
+                    rateOf(slot, neighbor).peerMetrics.unchokeSent();
                 }
+            } else if (neighbor.choke()) {
+                rateOf(slot, neighbor).peerMetrics.chokeSent();
             }
         }
     }
 
     private void optUnchoke() {
-        if (interestedNeighbors.isEmpty()) {
-            return; // No interested neighbors to optimistically unchoke
+        int count = 0;
+        for (int slot = 0, slots = peers.getSlotCount(); slot < slots; slot++) {
+            Neighbor neighbor = peers.get(slot);
+            if (neighbor != null && neighbor.isPeerInterested() && neighbor.isChokingPeer()) {
+                candidates[count++] = slot;
+            }
+        }
+        if (count == 0) {
+            return; // No choked interested neighbors to optimistically unchoke
         }
 
         // Randomly select an optimistically unchoked neighbor
-        Random rand = new Random();
-        String optUnchokedNeighbor = interestedNeighbors.get(rand.nextInt(interestedNeighbors.size()));
+        int chosenSlot = candidates[random.nextInt(count)];
+        Neighbor chosen = peers.get(chosenSlot);
+        Neighbor previous = optimisticSlot < 0 ? null : peers.get(optimisticSlot);
+        if (previous != null && !preferred.get(optimisticSlot) && previous.choke()) {
+            rateOf(optimisticSlot, previous).peerMetrics.chokeSent();
+        }
+        optimisticSlot = chosenSlot;
+        if (chosen != null && chosen.unchoke()) {
+            rateOf(chosenSlot, chosen).peerMetrics.unchokeSent();
+        }
+        metrics.optimisticUnchoke();
+        PeerEventLogger.optimisticNeighborChanged(localPeerID, peers.getPeerId(chosenSlot));
+    }
+
+    // The slot's cached rate and metrics, created when a neighbor is first seen in it
+    private NeighborRate rateOf(int slot, Neighbor neighbor) {
+        NeighborRate rate = rates[slot];
+        if (rate == null) {
+            rate = rates[slot] = new NeighborRate(slot, metrics.forPeer(neighbor.getRemotePeerID()));
+        }
+        return rate;
+    }
 
-        if (!unchoked.contains(optUnchokedNeighbor)) {
-            allPeerInfo.get(optUnchokedNeighbor).unchoke();
-            unchoked.add(optUnchokedNeighbor);
-            PeerEventLogger.optimisticNeighborChanged(Integer.parseInt(optUnchokedNeighbor), Integer.parseInt(optUnchokedNeighbor));
+    private static final class NeighborRate {
+        final int slot;
+        final PeerMetrics peerMetrics;
+        long bytesAtLastRound;
+        double bytesPerSecond;
+        // What this round ranks by: the rate, or 0 when seeding or snubbed
+        double score;
+        int tieBreak;
+
+        NeighborRate(int slot, PeerMetrics peerMetrics) {
+            this.slot = slot;
+            this.peerMetrics = peerMetrics;
         }
     }
 }
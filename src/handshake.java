@@ -27,7 +27,7 @@ public class handshake {
             stream.write(new byte[ZERO_BITS_LENGTH]);
 
             ByteBuffer peerIdBuffer = ByteBuffer.allocate(PEER_ID_LENGTH).putInt(this.peerID);
-            Logger.info("Handshake peer ID bytes: " + Arrays.toString(peerIdBuffer.array()));
+            Logger.debug(() -> "Handshake peer ID bytes: " + Arrays.toString(peerIdBuffer.array()));
             stream.write(peerIdBuffer.array());
             // Log handshake start event
             ConnectionEventLogger.peerHandshakeStarted(this.peerID, 29382374); // -1 indicating unknown peer ID
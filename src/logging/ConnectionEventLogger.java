@@ -1,7 +1,5 @@
 package logging;
 
-import java.io.IOException;
-
 /**
  * ConnectionEventLogger class for logging various connection-related events.
  * This class provides specialized methods to log events related to connections between peers in the P2P network.
@@ -15,13 +13,8 @@ public class ConnectionEventLogger {
      * @param peerId2 the ID of the receiving peer
      */
     public static void peerConnected(int peerId1, int peerId2) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] makes a connection to Peer [%d]", peerId1, peerId2);
-                LogWriter.writeToFile("log_peer_"+peerId1+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(peerId1, "[Time]: Peer [%d] makes a connection to Peer [%d]", peerId1, peerId2);
         }
     }
 
@@ -34,13 +27,8 @@ public class ConnectionEventLogger {
      * @param peerId2 the ID of the disconnected peer
      */
     public static void peerDisconnected(int peerId1, int peerId2) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] disconnects from Peer [%d]", peerId1, peerId2);
-                LogWriter.writeToFile("log_peer_"+peerId1+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(peerId1, "[Time]: Peer [%d] disconnects from Peer [%d]", peerId1, peerId2);
         }
     }
 
@@ -52,13 +40,8 @@ public class ConnectionEventLogger {
      * @param peerId2 the ID of the receiving peer
      */
     public static void peerHandshakeStarted(int peerId1, int peerId2) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] starts handshake with Peer [%d]", peerId1, peerId2);
-                LogWriter.writeToFile("log_peer_"+peerId1+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(peerId1, "[Time]: Peer [%d] starts handshake with Peer [%d]", peerId1, peerId2);
         }
     }
 
@@ -69,13 +52,8 @@ public class ConnectionEventLogger {
      * @param peerId2 the ID of the receiving peer
      */
     public static void peerHandshakeCompleted(int peerId1, int peerId2) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] successfully completes handshake with Peer [%d]", peerId1, peerId2);
-                LogWriter.writeToFile("log_peer_"+peerId1+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(peerId1, "[Time]: Peer [%d] successfully completes handshake with Peer [%d]", peerId1, peerId2);
         }
     }
 
@@ -86,13 +64,8 @@ public class ConnectionEventLogger {
      * @param peerId2 the ID of the blocked peer
      */
     public static void peerBlocked(int peerId1, int peerId2) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] temporarily blocks Peer [%d]", peerId1, peerId2);
-                LogWriter.writeToFile("log_peer_"+peerId1+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(peerId1, "[Time]: Peer [%d] temporarily blocks Peer [%d]", peerId1, peerId2);
         }
     }
 
@@ -103,13 +76,8 @@ public class ConnectionEventLogger {
      * @param peerId2 the ID of the unblocked peer
      */
     public static void peerUnblocked(int peerId1, int peerId2) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] unblocks Peer [%d]", peerId1, peerId2);
-                LogWriter.writeToFile("log_peer_"+peerId1+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(peerId1, "[Time]: Peer [%d] unblocks Peer [%d]", peerId1, peerId2);
         }
     }
 
@@ -120,25 +88,17 @@ public class ConnectionEventLogger {
      * @param receiverPeerId the ID of the peer receiving the request
      */
     public static void dataRequestSent(int requesterPeerId, int receiverPeerId) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] sends a data request to Peer [%d]", requesterPeerId, receiverPeerId);
-                LogWriter.writeToFile("log_peer_"+requesterPeerId+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(requesterPeerId, "[Time]: Peer [%d] sends a data request to Peer [%d]", requesterPeerId, receiverPeerId);
         }
     }
 
     // More logging methods can be added 
 
     public static void dataRequestSent(int requesterPeerId, int receiverPeerId, int pieceIndex) {
-        try {
-            String message = String.format("[Time]: Peer [%d] sends a data request for piece [%d] to Peer [%d]", 
-                                            requesterPeerId, pieceIndex, receiverPeerId);
-            LogWriter.writeToFile("log_peer_" + requesterPeerId + ".log", message);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(requesterPeerId, "[Time]: Peer [%d] sends a data request for piece [%d] to Peer [%d]",
+                    requesterPeerId, pieceIndex, receiverPeerId);
         }
     }
     
@@ -1,56 +1,265 @@
 package logging;
 
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.Date;
-import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * LogWriter is responsible for writing log messages to a file.
  * It supports adding timestamps to log messages and rotating log files based on size.
+ *
+ * Writing is asynchronous: writeToFile() only timestamps the event and puts it on a
+ * bounded lock-free queue, so the network threads never touch the disk. A single
+ * "log-writer" thread drains the queue into one long-lived buffered writer per log
+ * file, flushes after each batch, and rotates a file once it passes MAX_LOG_SIZE.
+ * The writer parks while the queue is empty and is unparked by the event that makes
+ * it non-empty, so an idle process does not wake it at all.
+ * When the queue is full the event is dropped rather than blocking the caller; the
+ * writer records how many were lost in the next line it writes.
+ *
+ * The template overloads take int arguments and are formatted on the writer thread,
+ * so a caller on a hot path pays for neither boxing, varargs arrays nor String.format.
  */
 public class LogWriter {
 
-    private String filePath;
-    private FileWriter fileWriter;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Queue<LogEvent> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Map<String, LogWriter> writers = new HashMap<>();
+    private static final Map<Integer, String> peerLogNames = new HashMap<>();
+    private static final Thread writerThread = startWriterThread();
+
+    private final String filePath;
+    private Writer fileWriter;
+    private long size;
     private final long MAX_LOG_SIZE = 1024 * 1024; // 1MB
-    private SimpleDateFormat dateFormat;
+    private final SimpleDateFormat dateFormat;
+
+    /**
+     * One queued line, or a flush barrier when latch is set. A null fileName means the
+     * peer's own log_peer_<peerId>.log. argCount is -1 when template is already the final
+     * text; otherwise the first argCount of a, b, c, d (then text, if set) fill the template.
+     */
+    private record LogEvent(String fileName, int peerId, long timeMillis, String template, int argCount,
+            int a, int b, int c, int d, String text, CountDownLatch latch) {
+
+        String format() {
+            if (argCount < 0) {
+                return template;
+            }
+            Object[] args = new Object[argCount + (text != null ? 1 : 0)];
+            int[] ints = { a, b, c, d };
+            for (int i = 0; i < argCount; i++) {
+                args[i] = ints[i];
+            }
+            if (text != null) {
+                args[argCount] = text;
+            }
+            return String.format(template, args);
+        }
+    }
 
     /**
      * Constructor
      * @param filePath - Path of the log file
      */
-    public LogWriter(String filePath) {
+    private LogWriter(String filePath) throws IOException {
         this.filePath = filePath;
-        try {
-            this.fileWriter = new FileWriter(filePath, true); // true to append
-            this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        } catch (IOException e) {
-            // Placeholder for generic error handling
-            System.err.println("Error initializing LogWriter: " + e.getMessage());
-        }
+        this.dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+        open();
+    }
+
+    private void open() throws IOException {
+        this.fileWriter = new BufferedWriter(new FileWriter(filePath, true), BUFFER_SIZE); // true to append
+        this.size = new File(filePath).length();
     }
 
     /**
-     * Writes a log message to the file with a timestamp.
+     * Queues a log message for the file with a timestamp. Returns immediately.
      * @param message - Message to be logged
+     * @throws IOException never; kept so existing callers compile unchanged
      */
     public static void writeToFile(String fileName, String message) throws IOException {
-        FileWriter fileWriter = new FileWriter(fileName, true);  // true means the file will be appended to
+        enqueue(fileName, 0, message, -1, 0, 0, 0, 0, null);
+    }
+
+    /**
+     * Queues a line for the file, formatted from the template later on the writer thread.
+     */
+    public static void writeToFile(String fileName, String template, int a) {
+        enqueue(fileName, 0, template, 1, a, 0, 0, 0, null);
+    }
+
+    /**
+     * Queues a line for log_peer_<peerId>.log, formatted later on the writer thread.
+     */
+    public static void writePeerLog(int peerId, String template, int a, int b) {
+        enqueue(null, peerId, template, 2, a, b, 0, 0, null);
+    }
+
+    public static void writePeerLog(int peerId, String template, int a, int b, int c) {
+        enqueue(null, peerId, template, 3, a, b, c, 0, null);
+    }
+
+    public static void writePeerLog(int peerId, String template, int a, int b, int c, int d) {
+        enqueue(null, peerId, template, 4, a, b, c, d, null);
+    }
+
+    /**
+     * As above, with a trailing string argument after the int.
+     */
+    public static void writePeerLog(int peerId, String template, int a, String text) {
+        enqueue(null, peerId, template, 1, a, 0, 0, 0, text);
+    }
+
+    private static void enqueue(String fileName, int peerId, String template, int argCount, int a, int b, int c,
+            int d, String text) {
+        int count = queued.incrementAndGet();
+        if (count > QUEUE_CAPACITY) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.add(new LogEvent(fileName, peerId, System.currentTimeMillis(), template, argCount, a, b, c, d, text,
+                null));
+        // Only the event that ends an idle spell wakes the writer; it drains everything after it too
+        if (count == 1) {
+            LockSupport.unpark(writerThread);
+        }
+    }
 
-        // Get the current time for the timestamp
-        LocalDateTime timestamp = LocalDateTime.now();
+    /**
+     * Writes a peer's log_peer_<peerId>.log into the given directory instead of the working
+     * directory, e.g. when several peers run in one process. Call it before the peer logs anything.
+     */
+    public static void setPeerLogDirectory(int peerId, String directory) {
+        String fileName = Path.of(directory).resolve("log_peer_" + peerId + ".log").toString();
+        synchronized (LogWriter.class) {
+            peerLogNames.put(peerId, fileName);
+        }
+    }
 
-        // Create the log entry
-        String logEntry = String.format("[%s]: %s\n", timestamp.toString(), message);
+    /**
+     * Blocks until every message queued before this call has been written and flushed.
+     */
+    public static void flush() throws InterruptedException {
+        CountDownLatch written = new CountDownLatch(1);
+        queued.incrementAndGet();
+        queue.add(new LogEvent(null, 0, 0, null, -1, 0, 0, 0, 0, null, written));
+        LockSupport.unpark(writerThread);
+        written.await();
+    }
 
-        // Write the log entry to the file
-        fileWriter.write(logEntry);
+    private static Thread startWriterThread() {
+        Thread thread = new Thread(LogWriter::drainLoop, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+        // Write out whatever is still queued when the process exits
+        Runtime.getRuntime().addShutdownHook(new Thread(LogWriter::drain));
+        return thread;
+    }
 
-        // Close the FileWriter
-        fileWriter.close();
+    private static void drainLoop() {
+        while (true) {
+            // An event counted but not yet added is about to arrive: poll again rather than
+            // park, since its producer saw a non-zero count and will not wake us
+            if (!drain() && queued.get() == 0) {
+                LockSupport.park();
+            }
+        }
+    }
+
+    /**
+     * Writes every queued event, then flushes each file touched by the batch once.
+     *
+     * @return whether anything was written
+     */
+    private static synchronized boolean drain() {
+        LogEvent event = queue.poll();
+        if (event == null) {
+            return false;
+        }
+        Map<String, LogWriter> touched = new HashMap<>();
+        do {
+            queued.decrementAndGet();
+            if (event.latch() != null) {
+                flushAll(touched);
+                event.latch().countDown();
+                continue;
+            }
+            String fileName = event.fileName() != null ? event.fileName()
+                    : peerLogNames.computeIfAbsent(event.peerId(), id -> "log_peer_" + id + ".log");
+            LogWriter writer = writerFor(fileName);
+            if (writer != null) {
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    writer.write(event.timeMillis(), "Log queue full, dropped " + lost + " messages");
+                }
+                writer.write(event.timeMillis(), event.format());
+                touched.put(fileName, writer);
+            }
+        } while ((event = queue.poll()) != null);
+        flushAll(touched);
+        return true;
+    }
+
+    private static LogWriter writerFor(String fileName) {
+        LogWriter writer = writers.get(fileName);
+        if (writer == null) {
+            try {
+                writer = new LogWriter(fileName);
+                writers.put(fileName, writer);
+            } catch (IOException e) {
+                // Placeholder for generic error handling
+                System.err.println("Error initializing LogWriter: " + e.getMessage());
+            }
+        }
+        return writer;
+    }
+
+    private static void flushAll(Map<String, LogWriter> touched) {
+        for (LogWriter writer : touched.values()) {
+            try {
+                writer.fileWriter.flush();
+            } catch (IOException e) {
+                System.err.println("Error flushing log " + writer.filePath + ": " + e.getMessage());
+            }
+        }
+        touched.clear();
+    }
+
+    private void write(long timeMillis, String message) {
+        // Same "[timestamp]: message" layout as before, formatted here instead of on the caller's thread
+        LocalDateTime timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(timeMillis), ZoneId.systemDefault());
+        String logEntry = "[" + timestamp + "]: " + message + "\n";
+        try {
+            fileWriter.write(logEntry);
+            size += logEntry.length();
+            if (size > MAX_LOG_SIZE) {
+                rotateLog();
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing log " + filePath + ": " + e.getMessage());
+        }
     }
 
     /**
@@ -61,11 +270,15 @@ public class LogWriter {
             fileWriter.close();
             // Rename the current log file and create a new one
             String rotatedLogPath = filePath + "." + dateFormat.format(new Date());
-            new File(filePath).renameTo(new File(rotatedLogPath));
-            this.fileWriter = new FileWriter(filePath, true);
+            File rotated = new File(rotatedLogPath);
+            for (int n = 1; rotated.exists(); n++) {
+                rotated = new File(rotatedLogPath + "." + n);
+            }
+            new File(filePath).renameTo(rotated);
+            open();
         } catch (IOException e) {
             // Placeholder for generic error handling
             System.err.println("Error rotating log: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -1,19 +1,25 @@
 package logging;
 
 import java.io.IOException;
+import java.util.function.Supplier;
 
 /**
  * Logger class for handling various types of logging.
  * This class provides methods to log messages at different levels of severity.
- * It can log messages at INFO, DEBUG, ERROR, and WARN levels.
+ * It can log messages at DEBUG, INFO, WARN, and ERROR levels.
+ *
+ * Every method checks the level before doing any work. The String and int overloads
+ * avoid the varargs array and boxing, and the Supplier overloads defer building the
+ * message entirely, so a disabled level costs only the check on hot paths.
  */
 public class Logger {
 
     /**
-     * Enum to represent various types of logging levels.
+     * Enum to represent various types of logging levels, from least to most severe.
+     * A level is enabled when it is at least as severe as the current one.
      */
     public enum LogLevel {
-        INFO, DEBUG, ERROR, WARN
+        DEBUG, INFO, WARN, ERROR
     }
 
     // Variable to hold the current log level for the application.
@@ -37,18 +43,21 @@ public class Logger {
         return currentLogLevel;
     }
 
+    /**
+     * @return whether messages at the given level are currently written
+     */
+    public static boolean isEnabled(LogLevel level) {
+        return currentLogLevel.ordinal() <= level.ordinal();
+    }
+
     /**
      * Logs a message when a new peer is connected.
      *
      * @param peerId the ID of the peer that connected
      */
     public static void peerConnected(int peerId) {
-        if (currentLogLevel.ordinal() <= LogLevel.INFO.ordinal()) {
-            try {
-                LogWriter.writeToFile("info.log", "New peer connected: " + peerId);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (isEnabled(LogLevel.INFO)) {
+            LogWriter.writeToFile("info.log", "New peer connected: %d", peerId);
         }
     }
 
@@ -58,7 +67,7 @@ public class Logger {
      * @param fileName the name of the downloaded file
      */
     public static void fileDownloaded(String fileName) {
-        if (currentLogLevel.ordinal() <= LogLevel.INFO.ordinal()) {
+        if (isEnabled(LogLevel.INFO)) {
             try {
                 LogWriter.writeToFile("info.log", "File downloaded: " + fileName);
             } catch (IOException e) {
@@ -74,11 +83,40 @@ public class Logger {
      * @param args optional arguments to format into the message
      */
     public static void info(String message, Object... args) {
-        if (currentLogLevel.ordinal() <= LogLevel.INFO.ordinal()) {
+        if (isEnabled(LogLevel.INFO)) {
             log("INFO", message, args);
         }
     }
 
+    public static void info(String message) {
+        if (isEnabled(LogLevel.INFO)) {
+            log("INFO", "%s", message);
+        }
+    }
+
+    public static void info(String message, int arg) {
+        if (isEnabled(LogLevel.INFO)) {
+            log("INFO", message, arg);
+        }
+    }
+
+    public static void info(String message, int arg1, int arg2) {
+        if (isEnabled(LogLevel.INFO)) {
+            log("INFO", message, arg1, arg2);
+        }
+    }
+
+    /**
+     * Logs a message at the INFO level, building it only if the level is enabled.
+     *
+     * @param message supplies the complete message text
+     */
+    public static void info(Supplier<String> message) {
+        if (isEnabled(LogLevel.INFO)) {
+            log("INFO", "%s", message.get());
+        }
+    }
+
     /**
      * Logs a message at the DEBUG level.
      *
@@ -86,11 +124,40 @@ public class Logger {
      * @param args optional arguments to format into the message
      */
     public static void debug(String message, Object... args) {
-        if (currentLogLevel.ordinal() <= LogLevel.DEBUG.ordinal()) {
+        if (isEnabled(LogLevel.DEBUG)) {
             log("DEBUG", message, args);
         }
     }
 
+    public static void debug(String message) {
+        if (isEnabled(LogLevel.DEBUG)) {
+            log("DEBUG", "%s", message);
+        }
+    }
+
+    public static void debug(String message, int arg) {
+        if (isEnabled(LogLevel.DEBUG)) {
+            log("DEBUG", message, arg);
+        }
+    }
+
+    public static void debug(String message, int arg1, int arg2) {
+        if (isEnabled(LogLevel.DEBUG)) {
+            log("DEBUG", message, arg1, arg2);
+        }
+    }
+
+    /**
+     * Logs a message at the DEBUG level, building it only if the level is enabled.
+     *
+     * @param message supplies the complete message text
+     */
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(LogLevel.DEBUG)) {
+            log("DEBUG", "%s", message.get());
+        }
+    }
+
     /**
      * Logs a message at the ERROR level.
      *
@@ -98,11 +165,40 @@ public class Logger {
      * @param args optional arguments to format into the message
      */
     public static void error(String message, Object... args) {
-        if (currentLogLevel.ordinal() <= LogLevel.ERROR.ordinal()) {
+        if (isEnabled(LogLevel.ERROR)) {
             log("ERROR", message, args);
         }
     }
 
+    public static void error(String message) {
+        if (isEnabled(LogLevel.ERROR)) {
+            log("ERROR", "%s", message);
+        }
+    }
+
+    public static void error(String message, int arg) {
+        if (isEnabled(LogLevel.ERROR)) {
+            log("ERROR", message, arg);
+        }
+    }
+
+    public static void error(String message, int arg1, int arg2) {
+        if (isEnabled(LogLevel.ERROR)) {
+            log("ERROR", message, arg1, arg2);
+        }
+    }
+
+    /**
+     * Logs a message at the ERROR level, building it only if the level is enabled.
+     *
+     * @param message supplies the complete message text
+     */
+    public static void error(Supplier<String> message) {
+        if (isEnabled(LogLevel.ERROR)) {
+            log("ERROR", "%s", message.get());
+        }
+    }
+
     /**
      * Logs a message at the WARN level.
      *
@@ -110,11 +206,40 @@ public class Logger {
      * @param args optional arguments to format into the message
      */
     public static void warn(String message, Object... args) {
-        if (currentLogLevel.ordinal() <= LogLevel.WARN.ordinal()) {
+        if (isEnabled(LogLevel.WARN)) {
             log("WARN", message, args);
         }
     }
 
+    public static void warn(String message) {
+        if (isEnabled(LogLevel.WARN)) {
+            log("WARN", "%s", message);
+        }
+    }
+
+    public static void warn(String message, int arg) {
+        if (isEnabled(LogLevel.WARN)) {
+            log("WARN", message, arg);
+        }
+    }
+
+    public static void warn(String message, int arg1, int arg2) {
+        if (isEnabled(LogLevel.WARN)) {
+            log("WARN", message, arg1, arg2);
+        }
+    }
+
+    /**
+     * Logs a message at the WARN level, building it only if the level is enabled.
+     *
+     * @param message supplies the complete message text
+     */
+    public static void warn(Supplier<String> message) {
+        if (isEnabled(LogLevel.WARN)) {
+            log("WARN", "%s", message.get());
+        }
+    }
+
     /**
      * Internal method to perform the logging. Formats the log message and prints it to System.out.
      *
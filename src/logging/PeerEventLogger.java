@@ -1,7 +1,5 @@
 package logging;
 
-import java.io.IOException;
-
 /**
  * PeerEventLogger class for logging various peer-related events.
  * This class provides specialized methods to log events related to peer actions in the P2P network.
@@ -15,13 +13,8 @@ public class PeerEventLogger {
      * @param preferredNeighbors comma-separated string of preferred neighbor IDs
      */
     public static void preferredNeighborsChanged(int peerId, String preferredNeighbors) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] has the preferred neighbors [%s]", peerId, preferredNeighbors);
-                LogWriter.writeToFile("log_peer_"+peerId+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(peerId, "[Time]: Peer [%d] has the preferred neighbors [%s]", peerId, preferredNeighbors);
         }
     }
 
@@ -32,13 +25,8 @@ public class PeerEventLogger {
      * @param optimisticNeighbor the ID of the optimistically unchoked neighbor
      */
     public static void optimisticNeighborChanged(int peerId, int optimisticNeighbor) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] has the optimistically unchoked neighbor [%d]", peerId, optimisticNeighbor);
-                LogWriter.writeToFile("log_peer_"+peerId+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(peerId, "[Time]: Peer [%d] has the optimistically unchoked neighbor [%d]", peerId, optimisticNeighbor);
         }
     }
 
@@ -50,13 +38,8 @@ public class PeerEventLogger {
      * @param pieceIndex the piece index received
      */
     public static void receivedHaveMessage(int receiverPeerId, int senderPeerId, int pieceIndex) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] received the 'have' message from [%d] for the piece [%d]", receiverPeerId, senderPeerId, pieceIndex);
-                LogWriter.writeToFile("log_peer_"+receiverPeerId+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(receiverPeerId, "[Time]: Peer [%d] received the 'have' message from [%d] for the piece [%d]", receiverPeerId, senderPeerId, pieceIndex);
         }
     }
 
@@ -67,13 +50,8 @@ public class PeerEventLogger {
      * @param senderPeerId the ID of the sending peer
      */
     public static void receivedInterestedMessage(int receiverPeerId, int senderPeerId) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] received the 'interested' message from [%d]", receiverPeerId, senderPeerId);
-                LogWriter.writeToFile("log_peer_"+receiverPeerId+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(receiverPeerId, "[Time]: Peer [%d] received the 'interested' message from [%d]", receiverPeerId, senderPeerId);
         }
     }
 
@@ -84,13 +62,8 @@ public class PeerEventLogger {
      * @param senderPeerId the ID of the sending peer
      */
     public static void receivedNotInterestedMessage(int receiverPeerId, int senderPeerId) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] received the 'not interested' message from [%d]", receiverPeerId, senderPeerId);
-                LogWriter.writeToFile("log_peer_"+receiverPeerId+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(receiverPeerId, "[Time]: Peer [%d] received the 'not interested' message from [%d]", receiverPeerId, senderPeerId);
         }
     }
 
@@ -103,13 +76,8 @@ public class PeerEventLogger {
      * @param numberOfPieces the updated number of pieces the downloading peer has
      */
     public static void pieceDownloaded(int downloaderPeerId, int senderPeerId, int pieceIndex, int numberOfPieces) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] has downloaded the piece [%d] from [%d]. Now the number of pieces it has is [%d]", downloaderPeerId, pieceIndex, senderPeerId, numberOfPieces);
-                LogWriter.writeToFile("log_peer_"+downloaderPeerId+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(downloaderPeerId, "[Time]: Peer [%d] has downloaded the piece [%d] from [%d]. Now the number of pieces it has is [%d]", downloaderPeerId, pieceIndex, senderPeerId, numberOfPieces);
         }
     }
 
@@ -119,47 +87,33 @@ public class PeerEventLogger {
      * @param peerId the ID of the peer that completed the download
      */
     public static void downloadComplete(int peerId) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] has downloaded the complete file", peerId);
-                LogWriter.writeToFile("info.log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writeToFile("info.log", "[Time]: Peer [%d] has downloaded the complete file", peerId);
         }
     }
 
     //logs a message when a peer is choked
     public static void peerChoked(int peerId, int neighborId) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] is choked by [%d]", peerId, neighborId);
-                LogWriter.writeToFile("log_peer_"+peerId+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(peerId, "[Time]: Peer [%d] is choked by [%d]", peerId, neighborId);
         }
     }
     //log message when peer unchoked
     public static void peerUnchoked(int peerId, int neighborId) {
-        if (Logger.getCurrentLogLevel().ordinal() <= Logger.LogLevel.INFO.ordinal()) {
-            try {
-                String message = String.format("[Time]: Peer [%d] is unchoked by [%d]", peerId, neighborId);
-                LogWriter.writeToFile("log_peer_"+peerId+".log", message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(peerId, "[Time]: Peer [%d] is unchoked by [%d]", peerId, neighborId);
         }
     }
 
+    //log message when a received piece fails verification
+    public static void pieceRejected(int peerId, int senderPeerId, int pieceIndex) {
+        if (Logger.isEnabled(Logger.LogLevel.INFO)) {
+            LogWriter.writePeerLog(peerId, "[Time]: Peer [%d] discarded corrupt piece [%d] from [%d]", peerId, pieceIndex, senderPeerId);
+        }
+    }
 
     public static void logPeerCommunicationError(int peerId, Exception e) {
-        try {
-            String message = String.format("[Time]: Communication error in Peer [%d]: %s", peerId, e.getMessage());
-            LogWriter.writeToFile("log_peer_" + peerId + ".log", message);
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
+        LogWriter.writePeerLog(peerId, "[Time]: Communication error in Peer [%d]: %s", peerId, e.getMessage());
     }
     
 }
@@ -24,6 +24,7 @@ public class message {
     public message(char type) {
         this.messageType = type;
         this.messagePayload = new byte[0];
+        this.messageLength = 1; // the type byte alone
     }
 
     /**
@@ -74,6 +75,16 @@ public class message {
         return BitSet.valueOf(Arrays.copyOfRange(message, 5, message.length));
     }
 
+    /**
+     * Parses the bitfield out of a received frame body (type byte at the buffer's position,
+     * followed by the bitfield), as delivered to PeerHandler.handleMessage.
+     * @param frame The frame body without its length prefix.
+     * @return The BitSet parsed from the message.
+     */
+    public static BitSet parseBitfieldMessage(ByteBuffer frame) {
+        return BitSet.valueOf(frame.slice(frame.position() + 1, frame.remaining() - 1));
+    }
+
     // Additional methods to work with message attributes
 
     public int getMessageLengthFromMessage(byte[] message) {
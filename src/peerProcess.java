@@ -1,41 +1,50 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.BitSet;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.util.concurrent.ConcurrentHashMap;
-import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import logging.LogWriter;
 import logging.Logger;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
-import java.util.Arrays;
 import errorhandling.P2PFileSharingException;
 
 /**
  * The main class for starting and managing peer processes in a P2P network.
  * This class initializes peer connections, handles incoming connections,
- * and manages the server socket.
+ * and manages the server socket. Connections run on the NIO transport
+ * (TransportMode nio, the default), on one blocking platform thread each
+ * (TransportMode threads), or on one blocking virtual thread each (TransportMode virtual).
  */
 public class peerProcess {
 
     private int myPeerID;
+    private final Path workDir;
     private Config configInfo;
-    private HashMap<String, peerInfo> allPeerInfo;
-    private HashMap<Integer, BitSet> pieceAvailability;
+    private Map<Integer, peerInfo> allPeerInfo;
+    private FileManager fileManager;
+    private PieceScheduler pieceScheduler;
+    private MetricsRegistry metrics;
+    private PeerRegistry<PeerHandler> peers;
     private peerInfo myPeerInfo;
     private ServerSocket serverSocket;
     private ExecutorService executor;
-
-    private static final Map<Socket, Integer> socketToPeerIdMap = new ConcurrentHashMap<>();
-
-    private InterestManager interestManager = new InterestManager();
+    private NioTransport nioTransport;
+    private Future<?> acceptLoop;
+    private chokeHandler chokeHandler;
+    private InterestManager interestManager;
 
     public static void main(String[] args) {
         try {
@@ -44,7 +53,9 @@ public class peerProcess {
                 return;
             }
             int peerID = Integer.parseInt(args[0]);
-            new peerProcess(peerID).start();
+            peerProcess process = new peerProcess(peerID);
+            process.start();
+            process.awaitShutdown();
         } catch (Exception e) {
             Logger.error("Failed to start peer process: %s", e.getMessage());
             System.exit(1);
@@ -52,100 +63,208 @@ public class peerProcess {
     }
 
     public peerProcess(int myPeerID) throws FileNotFoundException, P2PFileSharingException {
-        Logger.info("Initializing peer process with peerID: " + myPeerID);
+        this(myPeerID, Path.of(""));
+    }
+
+    /**
+     * Creates a peer that reads Common.cfg and PeerInfo.cfg from, and keeps its file, logs and
+     * metrics in, the given directory rather than the working directory. This is what lets
+     * several peers run in one process.
+     */
+    public peerProcess(int myPeerID, Path workDir) throws FileNotFoundException, P2PFileSharingException {
+        Logger.info("Initializing peer process with peerID: %d", myPeerID);
         this.myPeerID = myPeerID;
+        this.workDir = workDir;
+        LogWriter.setPeerLogDirectory(myPeerID, workDir.toString());
         try {
-            this.configInfo = new Config("Common.cfg");
-            this.allPeerInfo = makePeerInfo("PeerInfo.cfg");
-            this.myPeerInfo = allPeerInfo.get(Integer.toString(myPeerID));
-            this.pieceAvailability = new HashMap<>();
-            this.executor = Executors.newCachedThreadPool();
+            this.configInfo = new Config(workDir.resolve("Common.cfg").toString());
+            this.allPeerInfo = makePeerInfo(workDir.resolve("PeerInfo.cfg").toString());
+            this.myPeerInfo = allPeerInfo.get(myPeerID);
+            this.peers = new PeerRegistry<>(allPeerInfo.size());
+            this.metrics = new MetricsRegistry(myPeerID);
+            this.fileManager = new FileManager(configInfo.getFileSize(), configInfo.getPieceSize(),
+                    workDir.resolve(configInfo.getConfigFileName()).toString(), myPeerInfo.getContainsFile(), myPeerID,
+                    configInfo.getStorageMode(), configInfo.getWriteBehind(), metrics);
+            fileManager.setZeroCopyUpload(configInfo.getZeroCopyUpload());
+            if (configInfo.getVerifyPieces() && !fileManager.loadManifest()) {
+                Logger.warn("No piece manifest found for %s; received pieces will not be verified",
+                        configInfo.getConfigFileName());
+            }
+            if (configInfo.getCheckpoint()) {
+                int resumed = fileManager.enableCheckpoint();
+                if (resumed > 0) {
+                    Logger.info("Resumed %d pieces from checkpoint", resumed);
+                }
+            }
+            this.interestManager = new InterestManager(getNumPieces(), fileManager.getBitfield());
+            this.pieceScheduler = new PieceScheduler(new AvailabilityIndex(getNumPieces(), fileManager.getBitfield()),
+                    getNumPieces(), configInfo.getEndgame());
+            this.executor = newExecutor(configInfo.getTransportMode());
             Logger.info("Peer process for peerID %d created", myPeerID);
         } catch (FileNotFoundException e) {
             throw new P2PFileSharingException("Config file not found", P2PFileSharingException.ErrorType.FILE_ERROR, e);
         }
     }
 
-    private void start() throws IOException {
+    /**
+     * Starts listening, connects to every peer listed before us in PeerInfo.cfg and starts
+     * the choking timers.
+     */
+    public void start() throws IOException {
         Logger.info("Peer %d starting...", myPeerID);
-        initPieces();
 
-        startServer();
+        if ("nio".equals(configInfo.getTransportMode())) {
+            startNioTransport();
+        } else {
+            startServer();
+        }
+        metrics.register();
+        if (configInfo.getMetricsInterval() > 0) {
+            metrics.startSnapshots(workDir, configInfo.getMetricsInterval());
+        }
         connectToPreviousPeers();
 
+        this.chokeHandler = new chokeHandler(configInfo.getUnchokingInterval(),
+                configInfo.getOptimisticUnchokingInterval(), configInfo.getNumberOfPreferredNeighbors(), myPeerID,
+                peers, () -> fileManager.getCompletion().isDone(),
+                new ExecutorTaskScheduler(newThreadFactory(configInfo.getTransportMode())), metrics, new Random());
+        chokeHandler.start();
+
         Logger.info("Peer %d successfully initialized", myPeerID);
     }
 
+    /**
+     * Stops the choking timers, the listener and every connection. Threads that only flush
+     * state (logs, checkpoints, metrics) are daemons and are left to the JVM.
+     */
+    public void shutdown() {
+        if (chokeHandler != null) {
+            chokeHandler.stop();
+        }
+        if (nioTransport != null) {
+            nioTransport.shutdown();
+        }
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                Logger.error("Error closing server socket: %s", e.getMessage());
+            }
+        }
+        for (int slot = 0, slots = peers.getSlotCount(); slot < slots; slot++) {
+            PeerHandler handler = peers.get(slot);
+            if (handler != null) {
+                handler.disconnect();
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return a future completed once this peer holds the whole file
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return fileManager.getCompletion();
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Blocks until the accept loop exits. Needed in virtual mode, where every thread we
+     * start is a daemon and the JVM would otherwise exit as soon as main returns.
+     */
+    private void awaitShutdown() throws InterruptedException {
+        if (acceptLoop == null) {
+            return;
+        }
+        try {
+            acceptLoop.get();
+        } catch (ExecutionException e) {
+            Logger.error("Accept loop failed: %s", e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Executor for the accept loop and blocking connection readers in the given transport mode.
+     * Virtual mode gives every connection its own virtual thread; threads mode uses a cached
+     * pool of platform threads. The NIO transport runs on its own reactors and ignores it.
+     */
+    static ExecutorService newExecutor(String transportMode) {
+        if ("virtual".equals(transportMode)) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Thread factory for the choke/unchoke schedulers in the given transport mode.
+     */
+    static ThreadFactory newThreadFactory(String transportMode) {
+        if ("virtual".equals(transportMode)) {
+            return Thread.ofVirtual().name("choke-", 0).factory();
+        }
+        return Executors.defaultThreadFactory();
+    }
+
+    /**
+     * Builds the protocol handler for a freshly handshaken connection. Shared by both transports.
+     */
+    private PeerHandler createPeerHandler(int remotePeerID, PeerConnection connection) throws P2PFileSharingException {
+        return new PeerHandler(connection, fileManager, interestManager, peers, pieceScheduler,
+                new RequestPipeline(configInfo.getPipelineDepth(), configInfo.getPieceSize()), metrics, myPeerID,
+                remotePeerID);
+    }
+
+    private void startNioTransport() throws IOException {
+        this.nioTransport = new NioTransport(myPeerID, configInfo.getReactorThreads(), getMaxFrameLength(),
+                this::createPeerHandler);
+        nioTransport.listen(myPeerInfo.getPeerPort());
+    }
+
     private void startServer() throws IOException {
         int myPort = this.myPeerInfo.getPeerPort();
         this.serverSocket = new ServerSocket(myPort);
-        executor.submit(() -> {
+        this.acceptLoop = executor.submit(() -> {
             while (!serverSocket.isClosed()) {
+                Socket clientSocket = null;
                 try {
-                    Socket clientSocket = serverSocket.accept();
-    
-                    // Perform handshake with the connecting client
-                    handshake hs = new handshake(myPeerID); // Your own peer ID
-                    DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-                    byte[] handshakeMessage = hs.createHandshake();
-                    out.write(handshakeMessage);
-                    out.flush();
-    
-                    // Read handshake response from client
+                    clientSocket = serverSocket.accept();
+
+                    // Read the connecting peer's handshake, then answer with our own
                     DataInputStream in = new DataInputStream(clientSocket.getInputStream());
                     byte[] response = new byte[32];
                     in.readFully(response);
-                    int connectingPeerID = ByteBuffer.wrap(Arrays.copyOfRange(response, 28, 32)).getInt();
-    
-                    // Update map with the connecting peer ID
-                    socketToPeerIdMap.put(clientSocket, connectingPeerID);
-                    Logger.info("Handshake successful with connecting peer: " + connectingPeerID);
-    
+                    int connectingPeerID = handshake.readHandshake(response);
+
+                    DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+                    out.write(new handshake(myPeerID).createHandshake());
+                    out.flush();
+
+                    Logger.info("Handshake successful with connecting peer: %d", connectingPeerID);
+
                     // Proceed with normal peer handler logic
-                    FileManager fm = new FileManager(configInfo.getFileSize(), configInfo.getPieceSize(),
-                            configInfo.getConfigFileName(), myPeerInfo.getContainsFile(), myPeerID);
-                    executor.submit(new PeerHandler(clientSocket, fm, interestManager, pieceAvailability, socketToPeerIdMap));
-    
+                    SocketPeerConnection connection = new SocketPeerConnection(clientSocket, getMaxFrameLength());
+                    connection.setHandler(createPeerHandler(connectingPeerID, connection));
+                    executor.submit(connection);
+
                 } catch (IOException e) {
-                    Logger.error("Error accepting connection: " + e.getMessage());
+                    if (!serverSocket.isClosed()) {
+                        Logger.error("Error accepting connection: %s", e.getMessage());
+                    }
                 } catch (P2PFileSharingException e) {
-                    Logger.error("Error in handshake: " + e.getMessage());
+                    Logger.error("Error in handshake: %s", e.getMessage());
+                    closeQuietly(clientSocket);
                 }
             }
         });
         Logger.info("Server started, listening on port %d", myPort);
     }
-    
-    private int determinePeerId(Socket socket) throws IOException {
-        DataInputStream in = null;
-        try {
-            in = new DataInputStream(socket.getInputStream());
-            byte[] handshake = new byte[32];
-
-            // Read the handshake message from the input stream
-            int bytesRead = in.read(handshake);
-            Logger.info("Bytes read for handshake: " + bytesRead);
-            Logger.info("Received handshake bytes: " + Arrays.toString(handshake));
-
-            // Extracting the peer ID from the last 4 bytes
-            ByteBuffer buffer = ByteBuffer.wrap(handshake, 28, 4);
-            int extractedPeerId = buffer.getInt();
-            Logger.info("Extracted peer ID: " + extractedPeerId);
-
-            return extractedPeerId;
-        } catch (IOException e) {
-            Logger.error("Error in handshake: " + e.getMessage());
-            throw e;
-        } finally {
-            // Optional: Close the input stream if you're done with it
-            // if (in != null) in.close();
-        }
-    }
 
     private void connectToPreviousPeers() {
 
-        allPeerInfo.forEach((peerID, info) -> {
-            int currentPeerID = Integer.parseInt(peerID);
+        allPeerInfo.forEach((currentPeerID, info) -> {
             if (currentPeerID < myPeerID) {
                 try {
                     connectToPeer(info);
@@ -159,16 +278,21 @@ public class peerProcess {
     }
 
     private void connectToPeer(peerInfo info) throws P2PFileSharingException, IOException {
-        Logger.info("Connecting to peer with ID: " + info.getPeerID() + ", myPeerID: " + myPeerID);
+        Logger.info("Connecting to peer with ID: %d, myPeerID: %d", info.getPeerID(), myPeerID);
+
+        if (nioTransport != null) {
+            nioTransport.connect(info.getPeerAddress(), info.getPeerPort(), info.getPeerID());
+            return;
+        }
 
         Socket peerSocket = null;
         try {
             peerSocket = new Socket(info.getPeerAddress(), info.getPeerPort());
-            handshake hs = new handshake(Integer.parseInt(info.getPeerID()));
+            handshake hs = new handshake(myPeerID);
             DataOutputStream out = new DataOutputStream(peerSocket.getOutputStream());
             byte[] handshakeMessage = hs.createHandshake();
 
-            Logger.info("Sending handshake to peer " + info.getPeerID());
+            Logger.info("Sending handshake to peer %d", info.getPeerID());
             out.write(handshakeMessage);
             out.flush();
 
@@ -176,58 +300,55 @@ public class peerProcess {
             byte[] response = new byte[32];
             in.readFully(response);
 
-            int receivedPeerID = ByteBuffer.wrap(Arrays.copyOfRange(response, 28, 32)).getInt();
+            int receivedPeerID = handshake.readHandshake(response);
 
-            if (receivedPeerID != Integer.parseInt(info.getPeerID())) {
-                Logger.error("Incorrect peer ID received in handshake: " + receivedPeerID + " != " + info.getPeerID());
+            if (receivedPeerID != info.getPeerID()) {
+                Logger.error("Incorrect peer ID received in handshake: %d != %d", receivedPeerID, info.getPeerID());
                 throw new P2PFileSharingException("Incorrect peer ID received in handshake",
                         P2PFileSharingException.ErrorType.HANDSHAKE_ERROR);
             }
 
-            // Log the map before updating
-            Logger.info("socketToPeerIdMap before update: " + socketToPeerIdMap.toString());
+            Logger.info("Handshake successful with peer %d", receivedPeerID);
 
-            socketToPeerIdMap.put(peerSocket, receivedPeerID);
-
-            // Log the map after updating
-            Logger.info("socketToPeerIdMap after update: " + socketToPeerIdMap.toString());
-            Logger.info("Handshake successful with peer " + receivedPeerID);
-
-            Logger.info("Handshake successful with peer " + receivedPeerID);
-
-            FileManager fm = new FileManager(configInfo.getFileSize(), configInfo.getPieceSize(),
-                    configInfo.getConfigFileName(), myPeerInfo.getContainsFile(), myPeerID);
-            executor.submit(new PeerHandler(peerSocket, fm, interestManager, pieceAvailability, socketToPeerIdMap));
-            Logger.info("Connected to peer " + receivedPeerID);
+            SocketPeerConnection connection = new SocketPeerConnection(peerSocket, getMaxFrameLength());
+            connection.setHandler(createPeerHandler(receivedPeerID, connection));
+            executor.submit(connection);
+            Logger.info("Connected to peer %d", receivedPeerID);
 
         } catch (IOException e) {
-            Logger.error("IO error in peer connection to " + info.getPeerID() + ": " + e.getMessage());
-            if (peerSocket != null) {
-                try {
-                    peerSocket.close();
-                } catch (IOException ex) {
-                    Logger.error("Error closing socket: " + ex.getMessage());
-                }
-            }
+            Logger.error("IO error in peer connection to %d: %s", info.getPeerID(), e.getMessage());
+            closeQuietly(peerSocket);
             throw e;
         } catch (NumberFormatException e) {
-            Logger.error("Error parsing peer ID: " + e.getMessage());
+            Logger.error("Error parsing peer ID: %s", e.getMessage());
+            closeQuietly(peerSocket);
             throw new P2PFileSharingException("Peer ID format error", P2PFileSharingException.ErrorType.MESSAGE_ERROR,
                     e);
         } catch (P2PFileSharingException e) {
-            Logger.error("Error in handshake file thing: " + e.getMessage());
+            Logger.error("Error in handshake file thing: %s", e.getMessage());
+            closeQuietly(peerSocket);
             throw e;
         }
     }
 
-    public HashMap<String, peerInfo> makePeerInfo(String fileName) throws FileNotFoundException {
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                Logger.error("Error closing socket: %s", ex.getMessage());
+            }
+        }
+    }
+
+    public Map<Integer, peerInfo> makePeerInfo(String fileName) throws FileNotFoundException {
         try {
             Scanner in = new Scanner(new FileReader(fileName));
-            HashMap<String, peerInfo> peersMap = new HashMap<>();
+            Map<Integer, peerInfo> peersMap = new LinkedHashMap<>();
             while (in.hasNextLine()) {
                 String[] line = in.nextLine().split(" ");
                 peerInfo newPeer = new peerInfo(line[0], line[1], line[2], line[3]);
-                peersMap.put(line[0], newPeer);
+                peersMap.put(newPeer.getPeerID(), newPeer);
             }
             in.close();
             return peersMap;
@@ -237,23 +358,12 @@ public class peerProcess {
         }
     }
 
-    private void initPieces() {
-        int numPieces = getNumPieces();
-        allPeerInfo.forEach((id, info) -> {
-            BitSet available = new BitSet(numPieces);
-            if (info.getContainsFile()) {
-                available.set(0, numPieces);
-            }
-            pieceAvailability.put(Integer.parseInt(id), available);
-        });
-        Logger.info("Pieces initialized for peer %d", myPeerID);
-    }
-
-    public BitSet getPeerBitfield(String peerId) {
-        return pieceAvailability.get(peerId);
-    }
-
     private int getNumPieces() {
         return (configInfo.getFileSize() + configInfo.getPieceSize() - 1) / configInfo.getPieceSize();
     }
+
+    // The longest frame body a well-behaved neighbor sends: a piece message or our bitfield
+    private int getMaxFrameLength() {
+        return 5 + Math.max(configInfo.getPieceSize(), (getNumPieces() + 7) / 8);
+    }
 }